@@ -0,0 +1,269 @@
+package cb.circuitbreaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static cb.circuitbreaker.Printer.print;
+
+/**
+ * Keeps named circuit breakers and periodically saves a snapshot of their state to a file, so that a new incarnation of the process starts with the
+ * state the previous one had, instead of closed and with no failures. Without it, every new process sends a burst of doomed calls to a dependency
+ * that is down before it learns the state again.
+ *
+ * The snapshot is taken by a background thread: it copies the state of each breaker with {@link CircuitBreaker#state()}, writes all of them to a
+ * temporary file through a memory mapped buffer, and atomically replaces the snapshot file with it; so a reader never sees a half written
+ * snapshot. The request path is never blocked by the file system.
+ *
+ * The snapshot file is read once, when the registry is created and before the first snapshot is written. Each registered breaker whose name is
+ * in the snapshot is restored with {@link CircuitBreaker#restore}, provided the snapshot is not older than the maximum age. The remaining open time
+ * is shortened by the age of the snapshot, so a circuit that should have switched to half-open while no process was running is restored
+ * half-open. The entries whose breaker is not registered yet are copied to the new snapshots until they become too old, so a breaker registered
+ * late in the startup, or not at all by this incarnation, keeps its state for the next one.
+ *
+ * The file format is: a header with a magic number, the format version, the wall clock instant of the snapshot and the number of entries; followed
+ * by the entries, each with the name (UTF-8, prefixed by its length as an int), the open flag, the tries, the proportion of failures and the
+ * remaining open time.
+ */
+public class BreakerRegistry implements AutoCloseable {
+
+	private static final int MAGIC = 0x43425353; // "CBSS"
+	private static final short VERSION = 2;
+	private static final int HEADER_BYTES = Integer.BYTES + Short.BYTES + Long.BYTES + Integer.BYTES;
+	private static final int ENTRY_BYTES_WITHOUT_NAME = Integer.BYTES + Byte.BYTES + Integer.BYTES + Double.BYTES + Long.BYTES;
+
+	/**
+	 * The file where the snapshots are saved.
+	 */
+	private final Path file;
+	/**
+	 * Snapshots older than this, measured with the wall clock, are ignored when restoring.
+	 */
+	private final long maxSnapshotAgeMillis;
+	private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService snapshotter;
+	/**
+	 * The entries of the snapshot found when this instance was created, by name. Empty if there was no snapshot or it was too old or unreadable.
+	 */
+	private final Map<String, Entry> restorableEntries;
+	/**
+	 * The instant, measured with {@link System#nanoTime()}, when the {@link #restorableEntries} were loaded.
+	 */
+	private final long loadNano;
+	/**
+	 * The instant, measured with {@link System#nanoTime()}, when the snapshot the {@link #restorableEntries} come from becomes older than the
+	 * maximum age.
+	 */
+	private final long restorableUntilNano;
+
+	/**
+	 * Construct an instance, loads the snapshot of the previous incarnation, and starts its snapshotter thread.
+	 *
+	 * @param file                 the file where the snapshots are saved and from which the previous one is restored.
+	 * @param snapshotPeriodMillis the time between the end of a snapshot and the start of the next one.
+	 * @param maxSnapshotAgeMillis snapshots older than this are ignored when restoring.
+	 */
+	public BreakerRegistry(final Path file, final int snapshotPeriodMillis, final int maxSnapshotAgeMillis) {
+		this.file = file;
+		this.maxSnapshotAgeMillis = maxSnapshotAgeMillis;
+		this.loadNano = System.nanoTime();
+		var previous = load();
+		this.restorableEntries = previous.entries;
+		this.restorableUntilNano = loadNano + (maxSnapshotAgeMillis - previous.ageMillis) * CircuitBreaker.NANOS_PER_MILLI;
+		// scheduled after the load, so that the previous snapshot is never overwritten before it is read.
+		this.snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "breakerSnapshotter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, snapshotPeriodMillis, snapshotPeriodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Registers the specified circuit breaker with the specified name, and restores its state from the snapshot of the previous incarnation if it
+	 * has an entry with that name and is not too old. Should be called before the breaker is used.
+	 *
+	 * @return the received breaker.
+	 */
+	public <B extends CircuitBreaker> B register(final String name, final B breaker) {
+		if (breakers.putIfAbsent(name, breaker) != null) {
+			throw new IllegalArgumentException("There is already a circuit breaker named " + name);
+		}
+		var entry = restorableEntries.get(name);
+		var now = System.nanoTime();
+		if (entry != null && now - restorableUntilNano < 0) {
+			var nextTryNano = breaker.chrono.nanoTime() + Math.max(0, entry.remainingOpenNanosAt(now, loadNano));
+			breaker.restore(new CircuitBreaker.State(entry.isBroken, nextTryNano, entry.failuresProportion, entry.tries));
+		}
+		return breaker;
+	}
+
+	private PreviousSnapshot load() {
+		var entries = new HashMap<String, Entry>();
+		var ageMillis = 0L;
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+				print("Ignoring the breaker snapshot %s because its format is unknown.%n", file);
+				return new PreviousSnapshot(entries, 0);
+			}
+			ageMillis = System.currentTimeMillis() - buffer.getLong();
+			if (ageMillis > maxSnapshotAgeMillis) {
+				print("Ignoring the breaker snapshot %s because it is %d ms old.%n", file, ageMillis);
+				return new PreviousSnapshot(entries, 0);
+			}
+			var count = buffer.getInt();
+			for (var i = 0; i < count; ++i) {
+				var nameLength = buffer.getInt();
+				if (nameLength < 0 || nameLength > buffer.remaining()) {
+					throw new IOException("the name of the entry " + i + " exceeds the file");
+				}
+				var nameBytes = new byte[nameLength];
+				buffer.get(nameBytes);
+				var isBroken = buffer.get() != 0;
+				var tries = buffer.getInt();
+				var failuresProportion = buffer.getDouble();
+				var remainingOpenNanos = buffer.getLong() - ageMillis * CircuitBreaker.NANOS_PER_MILLI;
+				entries.put(new String(nameBytes, StandardCharsets.UTF_8), new Entry(isBroken, tries, failuresProportion, remainingOpenNanos));
+			}
+		} catch (NoSuchFileException e) {
+			// no previous incarnation: start cold.
+		} catch (IOException | RuntimeException e) {
+			print("Ignoring the breaker snapshot %s because it could not be read: %s%n", file, e);
+			entries.clear();
+		}
+		return new PreviousSnapshot(entries, ageMillis);
+	}
+
+	/**
+	 * Saves a snapshot of the state of all the registered breakers now. Called periodically by the snapshotter thread; may also be called by any
+	 * thread. Synchronized because all the snapshots are written through the same temporary file.
+	 */
+	public synchronized void snapshot() throws IOException {
+		var names = new ArrayList<byte[]>(breakers.size());
+		var entries = new ArrayList<Entry>(breakers.size());
+		var size = HEADER_BYTES;
+		// the entries of the previous snapshot whose breaker is not registered go first, so that a breaker registered meanwhile, which would be
+		// written twice, is restored from the last one.
+		var now = System.nanoTime();
+		if (now - restorableUntilNano < 0) {
+			for (var e : restorableEntries.entrySet()) {
+				if (!breakers.containsKey(e.getKey())) {
+					var name = e.getKey().getBytes(StandardCharsets.UTF_8);
+					var entry = e.getValue();
+					names.add(name);
+					entries.add(new Entry(entry.isBroken, entry.tries, entry.failuresProportion, entry.remainingOpenNanosAt(now, loadNano)));
+					size += ENTRY_BYTES_WITHOUT_NAME + name.length;
+				}
+			}
+		}
+		for (var e : breakers.entrySet()) {
+			var name = e.getKey().getBytes(StandardCharsets.UTF_8);
+			var breaker = e.getValue();
+			var state = breaker.state();
+			var remainingOpenNanos = state.isBroken ? state.nextTryNano - breaker.chrono.nanoTime() : 0L;
+			names.add(name);
+			entries.add(new Entry(state.isBroken, state.tries, state.failuresProportionEma, remainingOpenNanos));
+			size += ENTRY_BYTES_WITHOUT_NAME + name.length;
+		}
+
+		var temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (var channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis()).putInt(names.size());
+			for (var i = 0; i < names.size(); ++i) {
+				putEntry(buffer, names.get(i), entries.get(i));
+			}
+			buffer.force();
+		}
+		Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void putEntry(final ByteBuffer buffer, final byte[] name, final Entry entry) {
+		buffer.putInt(name.length)
+				.put(name)
+				.put((byte) (entry.isBroken ? 1 : 0))
+				.putInt(entry.tries)
+				.putDouble(entry.failuresProportion)
+				.putLong(entry.remainingOpenNanos);
+	}
+
+	private void snapshotQuietly() {
+		try {
+			snapshot();
+		} catch (IOException | RuntimeException e) {
+			// an exception would cancel the periodic snapshots, so it is reported and the next period tries again.
+			print("Could not save the breaker snapshot %s: %s%n", file, e);
+		}
+	}
+
+	/**
+	 * Stops the snapshotter thread and saves a last snapshot.
+	 */
+	@Override
+	public void close() throws IOException {
+		snapshotter.shutdown();
+		try {
+			snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		snapshot();
+	}
+
+	/**
+	 * The state of a breaker as saved in the snapshot file.
+	 */
+	private static final class Entry {
+		final boolean isBroken;
+		final int tries;
+		final double failuresProportion;
+		/**
+		 * The time the circuit should remain open since the snapshot was taken or, once loaded, since it was loaded. Negative if it should already
+		 * be half-open.
+		 */
+		final long remainingOpenNanos;
+
+		Entry(final boolean isBroken, final int tries, final double failuresProportion, final long remainingOpenNanos) {
+			this.isBroken = isBroken;
+			this.tries = tries;
+			this.failuresProportion = failuresProportion;
+			this.remainingOpenNanos = remainingOpenNanos;
+		}
+
+		/**
+		 * Gives the time the circuit of a loaded entry should remain open since the specified instant.
+		 */
+		long remainingOpenNanosAt(final long now, final long loadNano) {
+			return remainingOpenNanos - (now - loadNano);
+		}
+	}
+
+	/**
+	 * The entries of the snapshot of the previous incarnation and how old it was when loaded.
+	 */
+	private static final class PreviousSnapshot {
+		final Map<String, Entry> entries;
+		final long ageMillis;
+
+		PreviousSnapshot(final Map<String, Entry> entries, final long ageMillis) {
+			this.entries = entries;
+			this.ageMillis = ageMillis;
+		}
+	}
+}
@@ -1,12 +1,26 @@
 package cb.circuitbreaker;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 
 public abstract class CircuitBreaker {
 
 	protected static final double ONE_PERCENT = 0.01;
 	protected static final long NANOS_PER_MILLI = 1_000_000;
-	private static final Random RANDOM = new Random();
+	/**
+	 * In how many steps each half-life is divided by the {@link #DECAY_BY_STEP} table.
+	 */
+	private static final int DECAY_STEPS_PER_HALF_LIFE = 256;
+	/**
+	 * The decay factor after {@code i / DECAY_STEPS_PER_HALF_LIFE} half-lives, for {@code i} between zero and {@link #DECAY_STEPS_PER_HALF_LIFE}.
+	 * Lets the time based decay avoid {@link Math#exp} on the hot path.
+	 */
+	private static final double[] DECAY_BY_STEP = new double[DECAY_STEPS_PER_HALF_LIFE + 1];
+
+	static {
+		for (var i = 0; i <= DECAY_STEPS_PER_HALF_LIFE; ++i) {
+			DECAY_BY_STEP[i] = Math.pow(2, -(double) i / DECAY_STEPS_PER_HALF_LIFE);
+		}
+	}
 	/**
 	 * The threshold that determines when to open this circuit breaker. When the exponential moving average of the proportion of failures is greater
 	 * than this value, the circuit is opened.
@@ -17,14 +31,35 @@ public abstract class CircuitBreaker {
 	 */
 	protected final long initialRecoverNanos;
 	/**
-	 * The exponential moving average coefficient.
+	 * The exponential moving average coefficient. Not used when {@link #halfLifeNanos} is positive.
 	 */
 	protected final double alfa;
+	/**
+	 * When positive, the moving average decays with the elapsed time instead of with the number of calls: the weight of an outcome halves every
+	 * half-life, regardless of how many calls happen in between. That makes the reaction time independent of the request rate.
+	 */
+	protected final long halfLifeNanos;
+	/**
+	 * The duration of each of the {@link #DECAY_STEPS_PER_HALF_LIFE} steps in which the half-life is divided. The time based decay is applied in whole
+	 * steps.
+	 */
+	private final long decayStepNanos;
+	/**
+	 * When the decay is time based, the minimum weight of the calls in the moving average (the minimum {@link #decayedCalls}) for it to open the
+	 * circuit. Subclasses that count the calls instead apply it to their count. Below it, the few recent outcomes are not representative: at low
+	 * request rates, or after an idle period, a single failure would bring the moving average near one.
+	 */
+	protected final int minimumCalls;
 
 	/**
 	 * The chronometer used to measure elapsed time.
 	 */
 	protected final Chrono chrono;
+	/**
+	 * The random numbers generator used to apply randomness to the retry delay. Owned by this instance and accessed only inside {@link #postponeTry},
+	 * whose callers already guarantee exclusive access.
+	 */
+	private final SplittableRandom random;
 	/**
 	 * The state of this circuit breaker switch: false -> closed; true -> open or half-open depending on if {@code chrono.nanoTime() < nextTryNano} is
 	 * false or true respectively.
@@ -43,6 +78,18 @@ public abstract class CircuitBreaker {
 	 * opened and remains open during {@code initialRecoverMillis * 2^tries}.
 	 */
 	protected int tries;
+	/**
+	 * When the decay is time based, the sum of the failures weighted by their age.
+	 */
+	protected double decayedFailures;
+	/**
+	 * When the decay is time based, the sum of the calls weighted by their age.
+	 */
+	protected double decayedCalls;
+	/**
+	 * When the decay is time based, the instant until which {@link #decayedFailures} and {@link #decayedCalls} were decayed.
+	 */
+	protected long lastDecayNano;
 
 	/**
 	 * Construct an instance specifying all the parameters.
@@ -53,17 +100,51 @@ public abstract class CircuitBreaker {
 	 *                             every consecutive failed attempt.
 	 * @param alfa                 the coefficient of the exponential moving average of the proportion of failures.
 	 * @param chrono               the chronometer used to measure the elapsed time.
+	 * @param seed                 the seed of the random numbers generator used to apply randomness to the retry delay.
 	 */
 	protected CircuitBreaker(
 			final double breakThreshold,
 			final int initialRecoverMillis,
 			final double alfa,
-			final Chrono chrono
+			final Chrono chrono,
+			final long seed
+	) {
+		this(breakThreshold, initialRecoverMillis, alfa, 0, 0, chrono, seed);
+	}
+
+	/**
+	 * Construct an instance specifying all the parameters, including the half-life of the moving average when it decays with the elapsed time.
+	 *
+	 * @param breakThreshold       the threshold that determines when to open this circuit breaker. When the exponential moving average of the
+	 *                             proportion of failures is over this value, the circuit is opened.
+	 * @param initialRecoverMillis the amount of time that the circuit remains open before switching to half-open state. This period is doubled
+	 *                             every consecutive failed attempt.
+	 * @param alfa                 the coefficient of the exponential moving average of the proportion of failures. Not used when the half-life is
+	 *                             positive.
+	 * @param halfLifeMillis       when positive, the time after which the weight of an outcome in the moving average halves. When zero, the
+	 *                             moving average decays by the `alfa` coefficient with every call.
+	 * @param minimumCalls         when the half-life is positive, the minimum weight of the calls in the moving average for it to open the circuit.
+	 * @param chrono               the chronometer used to measure the elapsed time.
+	 * @param seed                 the seed of the random numbers generator used to apply randomness to the retry delay.
+	 */
+	protected CircuitBreaker(
+			final double breakThreshold,
+			final int initialRecoverMillis,
+			final double alfa,
+			final int halfLifeMillis,
+			final int minimumCalls,
+			final Chrono chrono,
+			final long seed
 	) {
 		this.breakThreshold = breakThreshold;
 		this.initialRecoverNanos = initialRecoverMillis * NANOS_PER_MILLI;
 		this.alfa = alfa;
+		this.halfLifeNanos = halfLifeMillis * NANOS_PER_MILLI;
+		this.decayStepNanos = Math.max(1, halfLifeNanos / DECAY_STEPS_PER_HALF_LIFE);
+		this.minimumCalls = minimumCalls;
 		this.chrono = chrono;
+		this.random = new SplittableRandom(seed);
+		this.lastDecayNano = chrono.nanoTime();
 	}
 
 	/**
@@ -73,23 +154,236 @@ public abstract class CircuitBreaker {
 		if (hasFailed && isBroken) {
 			if (now >= nextTryNano) {
 				// reaches here if the try was unsuccessful and the circuit is half open
-				tries += 1;
-				// apply a -20% to +25% randomness to the retry delay
-				var retryDelayRandomnessX100 = (RANDOM.nextInt(45) + 80);
-				nextTryNano = now + (initialRecoverNanos * tries * retryDelayRandomnessX100) / 100;
+				postponeTry(now);
 			}
 		} else {
 			// reaches here if the try was successful or the circuit is closed
-			failuresProportionEma = failuresProportionEma * (1d - alfa) + (hasFailed ? alfa : 0d);
+			average(now, hasFailed);
 			if (hasFailed) {
-				if (failuresProportionEma > breakThreshold) {
-					isBroken = true;
-					nextTryNano = now + initialRecoverNanos;
+				if (failuresProportionEma > breakThreshold && (halfLifeNanos == 0 || decayedCalls >= minimumCalls)) {
+					open(now);
 				}
 			} else {
-				isBroken = false;
-				tries = 0;
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Updates the state of this instance with the outcome of a call that was admitted despite the circuit being open, because of its criticality.
+	 * While the circuit is still open the outcome is only added to the moving average, so that the admission of said calls keeps following the
+	 * proportion of failures; but it neither closes nor reopens the circuit, which only the tries done at or after {@code nextTryNano} do. Otherwise,
+	 * when the circuit was closed or became half-open meanwhile, it is the same as {@link #update}. This method does not support concurrency.
+	 */
+	protected void updateBypassingOpen(final long now, final boolean hasFailed) {
+		if (isBroken && now < nextTryNano) {
+			average(now, hasFailed);
+		} else {
+			update(now, hasFailed);
+		}
+	}
+
+	/**
+	 * Adds an outcome to the moving average of the proportion of failures. This method does not support concurrency.
+	 */
+	private void average(final long now, final boolean hasFailed) {
+		if (halfLifeNanos > 0) {
+			decayUntil(now);
+			decayedFailures += hasFailed ? 1d : 0d;
+			decayedCalls += 1d;
+			failuresProportionEma = decayedFailures / decayedCalls;
+		} else {
+			failuresProportionEma = failuresProportionEma * (1d - alfa) + (hasFailed ? alfa : 0d);
+		}
+	}
+
+	/**
+	 * Updates the state of this instance with the outcomes of a batch of calls that started at the same instant, leaving it as the same number of
+	 * sequential calls to {@link #update} would, except for the floating point rounding. The outcomes are processed by runs of equal outcomes, each
+	 * in closed form: a run of {@code s} successes multiplies the moving average by {@code (1-alfa)^s}, and a run of {@code f} failures leaves it at
+	 * {@code 1-(1-ema)(1-alfa)^f} unless it crosses the threshold first, in which case the circuit is opened at the failure that crosses it. This
+	 * method does not support concurrency.
+	 *
+	 * @param hasFailed the outcomes of the calls, in the order they should be considered. Only the first {@code count} elements are used.
+	 */
+	protected void updateBatch(final long now, final boolean[] hasFailed, final int count) {
+		var runStart = 0;
+		while (runStart < count) {
+			final var runOutcome = hasFailed[runStart];
+			var runEnd = runStart + 1;
+			while (runEnd < count && hasFailed[runEnd] == runOutcome) {
+				runEnd += 1;
+			}
+			if (runOutcome) {
+				updateWithFailures(now, runEnd - runStart);
+			} else {
+				updateWithSuccesses(now, runEnd - runStart);
 			}
+			runStart = runEnd;
+		}
+	}
+
+	/**
+	 * Equivalent to {@code successes} sequential calls to {@link #update} with successful outcomes.
+	 */
+	private void updateWithSuccesses(final long now, final int successes) {
+		if (halfLifeNanos > 0) {
+			decayUntil(now);
+			decayedCalls += successes;
+			failuresProportionEma = decayedFailures / decayedCalls;
+		} else {
+			failuresProportionEma *= Math.pow(1d - alfa, successes);
+		}
+		close();
+	}
+
+	/**
+	 * Equivalent to {@code failures} sequential calls to {@link #update} with unsuccessful outcomes.
+	 */
+	private void updateWithFailures(final long now, final int failures) {
+		var remaining = failures;
+		if (!isBroken) {
+			// the number of failures after which the moving average is above the threshold, or more than the available if that doesn't happen.
+			final int failuresToOpen;
+			if (halfLifeNanos > 0) {
+				decayUntil(now);
+				// both, the proportion and the weight, grow with every failure; so the circuit opens at the first failure that makes both enough.
+				failuresToOpen = Math.max(
+						failuresToExceed((breakThreshold * decayedCalls - decayedFailures) / (1d - breakThreshold), failures),
+						Math.max(1, (int) Math.ceil(minimumCalls - decayedCalls))
+				);
+				final var counted = Math.min(failures, failuresToOpen);
+				decayedFailures += counted;
+				decayedCalls += counted;
+				failuresProportionEma = decayedFailures / decayedCalls;
+			} else {
+				final var successesProportion = 1d - failuresProportionEma;
+				failuresToOpen = failuresToExceed(Math.log((1d - breakThreshold) / successesProportion) / Math.log(1d - alfa), failures);
+				failuresProportionEma = 1d - successesProportion * Math.pow(1d - alfa, Math.min(failures, failuresToOpen));
+			}
+			if (failuresToOpen > failures) {
+				return;
+			}
+			open(now);
+			remaining -= failuresToOpen;
+		}
+		// the circuit is open: the remaining failures only matter while they find it half open, which ends at the first of them.
+		while (remaining > 0 && now >= nextTryNano) {
+			postponeTry(now);
+			remaining -= 1;
+		}
+	}
+
+	/**
+	 * Gives the smallest whole number of failures strictly greater than the received one, or {@code limit + 1} if it is greater than the limit.
+	 */
+	private static int failuresToExceed(final double exactFailures, final int limit) {
+		if (Double.isNaN(exactFailures) || exactFailures >= limit) {
+			return limit + 1;
+		}
+		return Math.max(1, (int) Math.floor(exactFailures) + 1);
+	}
+
+	/**
+	 * Decays the time weighted sums by the whole decay steps elapsed since the last decay. The remainder is kept for the next decay, so that frequent
+	 * calls don't lose it. Outcomes of calls that started before the last decay are added without decaying, as if they had started at the last
+	 * decay. This method does not support concurrency.
+	 */
+	protected void decayUntil(final long now) {
+		final var steps = (now - lastDecayNano) / decayStepNanos;
+		if (steps > 0) {
+			final var decay = decayFactor(steps);
+			decayedFailures *= decay;
+			decayedCalls *= decay;
+			lastDecayNano += steps * decayStepNanos;
+		}
+	}
+
+	/**
+	 * Calculates {@code 2^(-steps/DECAY_STEPS_PER_HALF_LIFE)} using a lookup table for the fractional part of the exponent and a binary scaling for
+	 * the integer part.
+	 */
+	static double decayFactor(final long steps) {
+		final var halfLives = steps / DECAY_STEPS_PER_HALF_LIFE;
+		if (halfLives >= Long.SIZE) {
+			return 0d;
+		}
+		return Math.scalb(DECAY_BY_STEP[(int) (steps % DECAY_STEPS_PER_HALF_LIFE)], (int) -halfLives);
+	}
+
+	/**
+	 * Opens the circuit, which remains open during the initial recover period. This method does not support concurrency.
+	 */
+	protected void open(final long now) {
+		nextTryNano = now + initialRecoverNanos;
+		isBroken = true;
+	}
+
+	/**
+	 * Counts an unsuccessful try in half-open state, and reopens the circuit during a period proportional to the number of consecutive tries. This
+	 * method does not support concurrency.
+	 */
+	protected void postponeTry(final long now) {
+		tries += 1;
+		// apply a -20% to +25% randomness to the retry delay
+		var retryDelayRandomnessX100 = (random.nextInt(45) + 80);
+		nextTryNano = now + (initialRecoverNanos * tries * retryDelayRandomnessX100) / 100;
+	}
+
+	/**
+	 * Closes the circuit. This method does not support concurrency.
+	 */
+	protected void close() {
+		isBroken = false;
+		tries = 0;
+	}
+
+	/**
+	 * Gives a copy of the state of this instance. This implementation does not support concurrency: subclasses whose state is updated by other
+	 * threads override it to give a consistent copy.
+	 */
+	public State state() {
+		return new State(isBroken, nextTryNano, failuresProportionEma, tries);
+	}
+
+	/**
+	 * Replaces the state of this instance with the specified one, whose {@code nextTryNano} must be measured with the {@link #chrono} of this
+	 * instance. Used to warm start a circuit breaker from a snapshot of the state of a previous incarnation. When the moving average decays with the
+	 * elapsed time, the restored proportion of failures weights as much as the {@link #minimumCalls} (at least one call), so that it is considered
+	 * but soon outweighed by the new outcomes. This implementation does not support concurrency: subclasses whose state is updated by other threads
+	 * override it to replace the state consistently.
+	 */
+	public void restore(final State state) {
+		nextTryNano = state.nextTryNano;
+		failuresProportionEma = state.failuresProportionEma;
+		tries = state.tries;
+		if (halfLifeNanos > 0) {
+			decayedCalls = Math.max(1, minimumCalls);
+			decayedFailures = state.failuresProportionEma * decayedCalls;
+			lastDecayNano = chrono.nanoTime();
+		}
+		isBroken = state.isBroken;
+	}
+
+	/**
+	 * An immutable copy of the state of a circuit breaker.
+	 */
+	public static final class State {
+		public final boolean isBroken;
+		public final long nextTryNano;
+		public final double failuresProportionEma;
+		public final int tries;
+
+		public State(final boolean isBroken, final long nextTryNano, final double failuresProportionEma, final int tries) {
+			this.isBroken = isBroken;
+			this.nextTryNano = nextTryNano;
+			this.failuresProportionEma = failuresProportionEma;
+			this.tries = tries;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("State(isBroken=%b, nextTryNano=%d, failuresProportionEma=%f, tries=%d)", isBroken, nextTryNano, failuresProportionEma, tries);
 		}
 	}
 
@@ -7,8 +7,11 @@ import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 import lombok.SneakyThrows;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.SplittableRandom;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
@@ -18,25 +21,79 @@ import static cb.circuitbreaker.Printer.debug;
 
 public class CircuitBreakerApplication {
 
-	Tester tester = new Tester(8);
+	/** How many distinct keys the requests sent to the breakers with stale fallback are spread over. */
+	private static final int STALE_CACHE_KEYS = 64;
+	/** The maximum age of the responses served by the breakers with stale fallback. */
+	private static final int STALE_CACHE_MAX_AGE_MILLIS = 5000;
+	/** The maximum number of times the retrying clients call the service for each request, the first attempt included. */
+	private static final int RETRY_MAX_ATTEMPTS = 3;
 
+	/**
+	 * How many runs are executed at the same time when comparing with many seeds. Configurable with the "concurrentRuns" system property. One by
+	 * default, because concurrent runs compete for the processors and distort the timing of each other.
+	 */
+	private static final int CONCURRENT_RUNS = Integer.getInteger("concurrentRuns", 1);
+	/** How many requests are processed concurrently by each circuit breaker. Configurable with the "parallelism" system property. */
+	private static final int PARALLELISM = Integer.getInteger("parallelism", 8);
+	/** The rate at which the requests are generated. Configurable with the "rate" system property. */
+	private static final double REQUESTS_PER_SECOND = Double.parseDouble(System.getProperty("rate", Double.toString(Tester.DEFAULT_REQUESTS_PER_SECOND)));
+	/**
+	 * The scenarios the circuit breakers can be tested against, by name.
+	 */
+	private static final Map<String, Tester.Scenario> SCENARIOS = Map.of(
+			"mixed", Tester.MIXED,
+			"rateSteps", Tester.RATE_STEPS,
+			"hostOutages", Tester.HOST_OUTAGES
+	);
+	/** The scenario the circuit breakers are tested against. Configurable with the "scenario" system property; "mixed" by default. */
+	private static final Tester.Scenario SCENARIO = SCENARIOS.get(System.getProperty("scenario", "mixed"));
+	/** How many endpoints are given a breaker of their own by the per endpoint facades. */
+	private static final int ENDPOINTS = 4;
+
+	final Tester tester;
+	/** The generator of the seeds of the circuit breakers, derived from the seed of the tester to make the run reproducible. */
+	private final SplittableRandom breakerSeeds;
+
+	CircuitBreakerApplication(Tester tester) {
+		this.tester = tester;
+		this.breakerSeeds = new SplittableRandom(tester.seed);
+	}
+
+	/**
+	 * Runs the comparison once with a random seed when no argument is given. When the number of seeds is given as the first argument (and optionally
+	 * the first seed as the second), runs the comparison once per seed and reports the confidence intervals.
+	 */
 	@SneakyThrows
 	public static void main(String[] args) {
-		new CircuitBreakerApplication().start();
+		if (args.length == 0) {
+			new CircuitBreakerApplication(new Tester(PARALLELISM, System.nanoTime(), REQUESTS_PER_SECOND, SCENARIO)).start();
+		} else {
+			var numberOfSeeds = Integer.parseInt(args[0]);
+			var firstSeed = args.length > 1 ? Long.parseLong(args[1]) : 1L;
+			new MultiSeedTester(PARALLELISM, REQUESTS_PER_SECOND, SCENARIO, firstSeed, numberOfSeeds, CONCURRENT_RUNS)
+					.run(tester -> new CircuitBreakerApplication(tester).buildFacades());
+		}
 		Printer.shutdown();
 	}
 
 	void start() {
+		tester.run(buildFacades());
+	}
+
+	/**
+	 * Creates all the circuit breakers under test, and wraps each of them within a {@link Tester.Facade}.
+	 */
+	List<Tester.Facade> buildFacades() {
 
 		// Create the instances of CircuitBreakerSync that will be tested and compared, and wrap them within a Facade to homogenize the usage.
 		final Stream<Tester.Facade> myBreakerFacades;
 		{
-			var breaker1 = new CircuitBreakerSync(0.5, 32, 0.02, System::nanoTime);
-			var breaker2 = new CircuitBreakerSync(0.5, 64, 0.02, System::nanoTime);
-			var breaker3 = new CircuitBreakerSync(0.5, 128, 0.02, System::nanoTime);
-			var breaker4 = new CircuitBreakerSync(0.5, 32, 0.05, System::nanoTime);
-			var breaker5 = new CircuitBreakerSync(0.5, 64, 0.05, System::nanoTime);
-			var breaker6 = new CircuitBreakerSync(0.5, 128, 0.05, System::nanoTime);
+			var breaker1 = new CircuitBreakerSync(0.5, 32, 0.02, System::nanoTime, breakerSeeds.nextLong());
+			var breaker2 = new CircuitBreakerSync(0.5, 64, 0.02, System::nanoTime, breakerSeeds.nextLong());
+			var breaker3 = new CircuitBreakerSync(0.5, 128, 0.02, System::nanoTime, breakerSeeds.nextLong());
+			var breaker4 = new CircuitBreakerSync(0.5, 32, 0.05, System::nanoTime, breakerSeeds.nextLong());
+			var breaker5 = new CircuitBreakerSync(0.5, 64, 0.05, System::nanoTime, breakerSeeds.nextLong());
+			var breaker6 = new CircuitBreakerSync(0.5, 128, 0.05, System::nanoTime, breakerSeeds.nextLong());
 			var myBreakers = Map.of(
 					"myBreaker1", breaker1,
 					"myBreaker2", breaker2,
@@ -49,6 +106,108 @@ public class CircuitBreakerApplication {
 					.map(entry -> buildAFacadeForACircuitBreakerSync(entry.getKey(), entry.getValue()));
 		}
 
+		// Create instances of CircuitBreakerSync whose moving average decays with the elapsed time, and wrap them within a Facade to homogenize the usage.
+		final Stream<Tester.Facade> myHalfLifeBreakerFacades;
+		{
+			var halfLife1 = CircuitBreakerSync.withHalfLife(0.5, 128, 32, 10, System::nanoTime, breakerSeeds.nextLong());
+			var halfLife2 = CircuitBreakerSync.withHalfLife(0.5, 128, 128, 10, System::nanoTime, breakerSeeds.nextLong());
+			var myHalfLifeBreakers = Map.of(
+					"myHalfLife1", halfLife1,
+					"myHalfLife2", halfLife2
+			);
+			myHalfLifeBreakerFacades = myHalfLifeBreakers.entrySet().stream()
+					.map(entry -> buildAFacadeForACircuitBreakerSync(entry.getKey(), entry.getValue()));
+		}
+
+		// Create the breakers of each endpoint of a host, independent and with a parent per host, and wrap each group within a Facade that routes every
+		// request to the breaker of its endpoint.
+		final Stream<Tester.Facade> myEndpointFacades;
+		{
+			var independentBreakers = new ArrayList<CircuitBreakerSync>();
+			var hostBreaker = new CircuitBreakerWindow(0.5, 128, 100, 10, 8, System::nanoTime, breakerSeeds.nextLong());
+			var hostListener = new CircuitBreaker.StateChangeListener() {
+				@Override
+				public void brokenStateChanged(boolean isBroken) {
+					debug("myHierarchy host - open=%b\n", isBroken);
+				}
+
+				@Override
+				public void failuresProportionChanged(double newValue) {
+					debug("myHierarchy host - failProp=%f\n", newValue);
+				}
+
+				@Override
+				public void triesChanged(int newValue) {
+					debug("myHierarchy host - tries=%d\n", newValue);
+				}
+			};
+			var childBreakers = new ArrayList<CircuitBreakerSync>();
+			for (var endpoint = 0; endpoint < ENDPOINTS; ++endpoint) {
+				independentBreakers.add(new CircuitBreakerSync(0.5, 128, 0.05, System::nanoTime, breakerSeeds.nextLong()));
+				childBreakers.add(CircuitBreakerSync.withParent(hostBreaker, hostListener, 0.5, 128, 0.05, System::nanoTime, breakerSeeds.nextLong()));
+			}
+			myEndpointFacades = Stream.of(
+					buildAFacadeForEndpointBreakers("myEndpoints", independentBreakers),
+					buildAFacadeForEndpointBreakers("myHierarchy", childBreakers)
+			);
+		}
+
+		// Create the instances of CircuitBreakerWindow that will be tested and compared, and wrap them within a Facade to homogenize the usage.
+		final Stream<Tester.Facade> myWindowFacades;
+		{
+			var window1 = new CircuitBreakerWindow(0.5, 32, 100, 10, 4, System::nanoTime, breakerSeeds.nextLong());
+			var window2 = new CircuitBreakerWindow(0.5, 128, 100, 10, 4, System::nanoTime, breakerSeeds.nextLong());
+			var window3 = new CircuitBreakerWindow(0.5, 32, 400, 20, 8, System::nanoTime, breakerSeeds.nextLong());
+			var window4 = new CircuitBreakerWindow(0.5, 128, 400, 20, 8, System::nanoTime, breakerSeeds.nextLong());
+			var myWindows = Map.of(
+					"myWindow1", window1,
+					"myWindow2", window2,
+					"myWindow3", window3,
+					"myWindow4", window4
+			);
+			myWindowFacades = myWindows.entrySet().stream()
+					.map(entry -> buildAFacadeForACircuitBreakerWindow(entry.getKey(), entry.getValue()));
+		}
+
+		// Create instances of CircuitBreakerSync that fall back to stale responses when open, and wrap them within a Facade to homogenize the usage.
+		final Stream<Tester.Facade> myStaleBreakerFacades;
+		{
+			var staleBreaker3 = new CircuitBreakerSync(0.5, 128, 0.02, System::nanoTime, breakerSeeds.nextLong());
+			var staleBreaker6 = new CircuitBreakerSync(0.5, 128, 0.05, System::nanoTime, breakerSeeds.nextLong());
+			var myStaleBreakers = Map.of(
+					"myBreaker3 stale", staleBreaker3,
+					"myBreaker6 stale", staleBreaker6
+			);
+			myStaleBreakerFacades = myStaleBreakers.entrySet().stream()
+					.map(entry -> buildAFacadeForACircuitBreakerSyncWithFallback(
+							entry.getKey(),
+							entry.getValue(),
+							new StaleResponseCache<>(STALE_CACHE_KEYS, STALE_CACHE_MAX_AGE_MILLIS, System::nanoTime)
+					));
+		}
+
+		// Create instances of CircuitBreakerSync that admit the requests according to their criticality, and wrap them within a Facade to homogenize the usage.
+		final Stream<Tester.Facade> myCriticalityBreakerFacades;
+		{
+			var criticalityBreaker3 = new CircuitBreakerSync(0.5, 128, 0.02, System::nanoTime, breakerSeeds.nextLong());
+			var criticalityBreaker6 = new CircuitBreakerSync(0.5, 128, 0.05, System::nanoTime, breakerSeeds.nextLong());
+			myCriticalityBreakerFacades = Stream.of(
+					buildAFacadeForACriticalityAwareCircuitBreakerSync("myBreaker3 critical", criticalityBreaker3),
+					buildAFacadeForACriticalityAwareCircuitBreakerSync("myBreaker6 critical", criticalityBreaker6)
+			);
+		}
+
+		// Create instances of CircuitBreakerSync used by retrying clients, with and without a retry budget, and wrap them within a Facade to homogenize the usage.
+		final Stream<Tester.Facade> myRetryingBreakerFacades;
+		{
+			var unbudgetedBreaker = new CircuitBreakerSync(0.5, 128, 0.02, System::nanoTime, breakerSeeds.nextLong());
+			var budgetedBreaker = new CircuitBreakerSync(0.5, 128, 0.02, System::nanoTime, breakerSeeds.nextLong());
+			myRetryingBreakerFacades = Stream.of(
+					buildAFacadeForARetryingCircuitBreakerSync("myBreaker3 retry", unbudgetedBreaker, RetryBudget.unlimited()),
+					buildAFacadeForARetryingCircuitBreakerSync("myBreaker3 budget", budgetedBreaker, new RetryBudget(budgetedBreaker, 0.1, 100))
+			);
+		}
+
 		// Create the instances of MeLi circuit breaker that will be tested and compared, and wrap them within a Facade to homogenize the usage.
 		final Stream<Tester.Facade> meliBreakerFacakdes;
 		{
@@ -130,12 +289,13 @@ public class CircuitBreakerApplication {
 		};
 
 		// initialize the list that contains all the circuit breakers under test.
-		var facades = Stream.concat(
-				Stream.concat(Stream.of(alwaysClosed), myBreakerFacades),
-				Stream.concat(meliBreakerFacakdes, res4jBreakerFacades)
+		return Stream.concat(
+				Stream.concat(
+						Stream.concat(Stream.concat(Stream.of(alwaysClosed), myBreakerFacades), Stream.concat(myHalfLifeBreakerFacades, myWindowFacades)),
+						Stream.concat(myStaleBreakerFacades, myRetryingBreakerFacades)
+				),
+				Stream.concat(Stream.concat(myEndpointFacades, myCriticalityBreakerFacades), Stream.concat(meliBreakerFacakdes, res4jBreakerFacades))
 		).collect(Collectors.toList());
-
-		tester.run(facades);
 	}
 
 	/** Builds a {@link Tester.Facade} for the synchronous version of my custom circuit breaker */
@@ -166,6 +326,145 @@ public class CircuitBreakerApplication {
 		};
 	}
 
+	/**
+	 * Builds a {@link Tester.Facade} for the synchronous version of my custom circuit breaker that admits each request according to its criticality.
+	 */
+	Tester.Facade buildAFacadeForACriticalityAwareCircuitBreakerSync(String name, CircuitBreakerSync breaker) {
+		return request -> {
+			var response = breaker.execute(
+					request.criticality,
+					() -> tester.simulatedServiceMethod(request.milli),
+					r -> request.isOk,
+					new CircuitBreaker.StateChangeListener() {
+						@Override
+						public void brokenStateChanged(boolean isBroken) {
+							debug("%d - %s - open=%b\n", request.milli, name, isBroken);
+						}
+
+						@Override
+						public void failuresProportionChanged(double newValue) {
+							debug("%d - %s - failProp=%f\n", request.milli, name, newValue);
+						}
+
+						@Override
+						public void triesChanged(int newValue) {
+							debug("%d - %s - tries=%d\n", request.milli, name, newValue);
+						}
+					}
+			);
+			return new Tester.Out(name, request, response);
+		};
+	}
+
+	/**
+	 * Builds a {@link Tester.Facade} that sends each request trough the breaker of its endpoint. The received breakers are indexed by endpoint;
+	 * endpoints beyond their number share them cyclically.
+	 */
+	Tester.Facade buildAFacadeForEndpointBreakers(String name, List<CircuitBreakerSync> breakers) {
+		final var facades = breakers.stream()
+				.map(breaker -> buildAFacadeForACircuitBreakerSync(name, breaker))
+				.collect(Collectors.toList());
+		return request -> facades.get(request.endpoint % facades.size()).doSomething(request);
+	}
+
+	/** Builds a {@link Tester.Facade} for the sliding window version of my custom circuit breaker */
+	Tester.Facade buildAFacadeForACircuitBreakerWindow(String name, CircuitBreakerWindow breaker) {
+		return request -> {
+			var response = breaker.execute(
+					() -> tester.simulatedServiceMethod(request.milli),
+					r -> request.isOk,
+					new CircuitBreaker.StateChangeListener() {
+						@Override
+						public void brokenStateChanged(boolean isBroken) {
+							debug("%d - %s - open=%b\n", request.milli, name, isBroken);
+						}
+
+						@Override
+						public void failuresProportionChanged(double newValue) {
+							debug("%d - %s - failProp=%f\n", request.milli, name, newValue);
+						}
+
+						@Override
+						public void triesChanged(int newValue) {
+							debug("%d - %s - tries=%d\n", request.milli, name, newValue);
+						}
+					}
+			);
+			return new Tester.Out(name, request, response);
+		};
+	}
+
+	/**
+	 * Builds a {@link Tester.Facade} for the synchronous version of my custom circuit breaker that serves stale responses from the received cache
+	 * when the circuit is open.
+	 */
+	Tester.Facade buildAFacadeForACircuitBreakerSyncWithFallback(String name, CircuitBreakerSync breaker, StaleResponseCache<Long, String> cache) {
+		return request -> {
+			var served = breaker.executeWithFallback(
+					request.milli % STALE_CACHE_KEYS,
+					cache,
+					() -> tester.simulatedServiceMethod(request.milli),
+					r -> request.isOk,
+					new CircuitBreaker.StateChangeListener() {
+						@Override
+						public void brokenStateChanged(boolean isBroken) {
+							debug("%d - %s - open=%b\n", request.milli, name, isBroken);
+						}
+
+						@Override
+						public void failuresProportionChanged(double newValue) {
+							debug("%d - %s - failProp=%f\n", request.milli, name, newValue);
+						}
+
+						@Override
+						public void triesChanged(int newValue) {
+							debug("%d - %s - tries=%d\n", request.milli, name, newValue);
+						}
+					}
+			);
+			var isStale = served.map(s -> s.isStale).orElse(false);
+			return new Tester.Out(name, request, served.map(s -> s.response), isStale, served.isPresent() && !isStale ? 1 : 0);
+		};
+	}
+
+	/**
+	 * Builds a {@link Tester.Facade} for the synchronous version of my custom circuit breaker used by a client that retries failed calls as long as
+	 * the received budget allows it. The first attempt responds according to the request, and each retry decides again.
+	 */
+	Tester.Facade buildAFacadeForARetryingCircuitBreakerSync(String name, CircuitBreakerSync breaker, RetryBudget budget) {
+		return request -> {
+			var attempts = new int[1];
+			var response = breaker.executeWithRetries(
+					() -> {
+						attempts[0] += 1;
+						var r = tester.simulatedServiceMethod(request.milli);
+						var isOk = attempts[0] == 1 ? request.isOk : tester.isOkOnRetry(request, attempts[0]);
+						return isOk ? r : Tester.FAILURE;
+					},
+					r -> !Tester.FAILURE.equals(r),
+					new CircuitBreaker.StateChangeListener() {
+						@Override
+						public void brokenStateChanged(boolean isBroken) {
+							debug("%d - %s - open=%b\n", request.milli, name, isBroken);
+						}
+
+						@Override
+						public void failuresProportionChanged(double newValue) {
+							debug("%d - %s - failProp=%f\n", request.milli, name, newValue);
+						}
+
+						@Override
+						public void triesChanged(int newValue) {
+							debug("%d - %s - tries=%d\n", request.milli, name, newValue);
+						}
+					},
+					budget,
+					RETRY_MAX_ATTEMPTS
+			);
+			return new Tester.Out(name, request, response, false, attempts[0]);
+		};
+	}
+
 	/** Builds a {@link Tester.Facade} for a MeLi circuit breaker */
 	Tester.Facade buildAFacadeForAMeliCircuitBreaker(String name, com.mercadolibre.resilience.breaker.CircuitBreaker cb) {
 		return request -> {
@@ -33,7 +33,30 @@ public class CircuitBreakerExec extends CircuitBreaker {
 			final Chrono chrono,
 			final ExecutorService aSingleThreadExecutor
 	) {
-		super(breakThreshold, initialRecoverMillis, alfa, chrono);
+		this(breakThreshold, initialRecoverMillis, alfa, chrono, aSingleThreadExecutor, System.nanoTime());
+	}
+
+	/**
+	 * Construct an instance specifying all the parameters, including the seed of the randomness applied to the retry delay, which makes the behaviour
+	 * of this instance reproducible.
+	 *
+	 * @param breakThreshold       the threshold that determines when to open this circuit breaker. When the exponential moving average of the
+	 *                             proportion of failures is over this value, the circuit is opened.
+	 * @param initialRecoverMillis the amount of time that the circuit remains opened before switching to half-open state. This period is doubled
+	 *                             every consecutive failed attempt.
+	 * @param alfa                 the coefficient of the exponential moving average of the proportion of failures.
+	 * @param chrono               the chronometer used to measure the elapsed time.
+	 * @param seed                 the seed of the random numbers generator used to apply randomness to the retry delay.
+	 */
+	public CircuitBreakerExec(
+			final double breakThreshold,
+			final int initialRecoverMillis,
+			final double alfa,
+			final Chrono chrono,
+			final ExecutorService aSingleThreadExecutor,
+			final long seed
+	) {
+		super(breakThreshold, initialRecoverMillis, alfa, chrono, seed);
 		this.singleThreadExecutor = aSingleThreadExecutor;
 	}
 
@@ -68,6 +91,24 @@ public class CircuitBreakerExec extends CircuitBreaker {
 				);
 	}
 
+	/**
+	 * Gives a consistent copy of the state of this instance. The copy is taken by the single thread executor, so this method blocks until the tasks
+	 * already submitted to it are done. Must not be called from said executor.
+	 */
+	@Override
+	public State state() {
+		return CompletableFuture.supplyAsync(super::state, singleThreadExecutor).join();
+	}
+
+	/**
+	 * Replaces the state of this instance from the single thread executor, and waits until it is done. Must not be called from said executor. See
+	 * {@link CircuitBreaker#restore}.
+	 */
+	@Override
+	public void restore(final State state) {
+		CompletableFuture.runAsync(() -> super.restore(state), singleThreadExecutor).join();
+	}
+
 	/**
 	 * Updates the state of this instance and informs the listener of any change.
 	 */
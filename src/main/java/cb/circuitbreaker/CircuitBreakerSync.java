@@ -1,13 +1,40 @@
 package cb.circuitbreaker;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
-/** A circuit breaker whose state is updated inside a synchronized section. */
+/**
+ * A circuit breaker whose state is updated inside a synchronized section.
+ *
+ * An instance may have a parent, typically shared by the breakers of all the endpoints of the same host, created with {@link #withParent}. The
+ * outcomes recorded by the child are also recorded by the parent, and the calls are rejected while either of them is open. So a failure that
+ * affects the whole host is learned from the outcomes of all its endpoints, and stops the calls to all of them at once.
+ */
 public class CircuitBreakerSync extends CircuitBreaker {
 
+	/**
+	 * The breaker that aggregates the outcomes of this one and its siblings, or null if this instance has no parent. The {@link CircuitBreakerWindow}
+	 * is used because it records outcomes with a CAS, so the siblings don't contend on a lock while the parent is closed.
+	 */
+	private final CircuitBreakerWindow parent;
+	/**
+	 * The listener informed of the state changes of the parent caused by the outcomes recorded by this instance. Null if there is no parent.
+	 */
+	private final StateChangeListener parentListener;
+	/**
+	 * The admission credits accumulated by each {@link Criticality}, indexed by ordinal. See {@link #admits}.
+	 */
+	private final AtomicLongArray admissionCredits = new AtomicLongArray(Criticality.values().length);
+	/**
+	 * The number of calls of each {@link Criticality} that were not admitted, indexed by ordinal.
+	 */
+	private final AtomicLongArray shedCalls = new AtomicLongArray(Criticality.values().length);
+
 	/**
 	 * Construct an instance specifying all the parameters.
 	 *
@@ -24,7 +51,97 @@ public class CircuitBreakerSync extends CircuitBreaker {
 			final double alfa,
 			final Chrono chrono
 	) {
-		super(breakThreshold, initialRecoverMillis, alfa, chrono);
+		this(breakThreshold, initialRecoverMillis, alfa, chrono, System.nanoTime());
+	}
+
+	/**
+	 * Construct an instance specifying all the parameters, including the seed of the randomness applied to the retry delay, which makes the behaviour
+	 * of this instance reproducible.
+	 *
+	 * @param breakThreshold       the threshold that determines when to open this circuit breaker. When the exponential moving average of the
+	 *                             proportion of failures is over this value, the circuit is opened.
+	 * @param initialRecoverMillis the amount of time that the circuit remains opened before switching to half-open state. This period is doubled
+	 *                             every consecutive failed attempt.
+	 * @param alfa                 the coefficient of the exponential moving average of the proportion of failures.
+	 * @param chrono               the chronometer used to measure the elapsed time.
+	 * @param seed                 the seed of the random numbers generator used to apply randomness to the retry delay.
+	 */
+	public CircuitBreakerSync(
+			final double breakThreshold,
+			final int initialRecoverMillis,
+			final double alfa,
+			final Chrono chrono,
+			final long seed
+	) {
+		this(breakThreshold, initialRecoverMillis, alfa, 0, 0, chrono, seed, null, null);
+	}
+
+	private CircuitBreakerSync(
+			final double breakThreshold,
+			final int initialRecoverMillis,
+			final double alfa,
+			final int halfLifeMillis,
+			final int minimumCalls,
+			final Chrono chrono,
+			final long seed,
+			final CircuitBreakerWindow parent,
+			final StateChangeListener parentListener
+	) {
+		super(breakThreshold, initialRecoverMillis, alfa, halfLifeMillis, minimumCalls, chrono, seed);
+		this.parent = parent;
+		this.parentListener = parentListener;
+	}
+
+	/**
+	 * Creates an instance whose moving average of the proportion of failures decays with the elapsed time instead of with the number of calls, so
+	 * that it takes the same time to react regardless of the request rate. The circuit is not opened while the weight of the recent calls is below
+	 * `minimumCalls`, so that a single failure after an idle period, or at a request rate too low for the half-life, does not open it.
+	 *
+	 * @param breakThreshold       the threshold that determines when to open this circuit breaker. When the time weighted moving average of the
+	 *                             proportion of failures is over this value, the circuit is opened.
+	 * @param initialRecoverMillis the amount of time that the circuit remains opened before switching to half-open state. This period is doubled
+	 *                             every consecutive failed attempt.
+	 * @param halfLifeMillis       the time after which the weight of an outcome in the moving average halves.
+	 * @param minimumCalls         the minimum weight of the calls in the moving average for it to open the circuit. The weight of a steady rate of
+	 *                             {@code r} calls per millisecond is about {@code 1.44 * r * halfLifeMillis}.
+	 * @param chrono               the chronometer used to measure the elapsed time.
+	 * @param seed                 the seed of the random numbers generator used to apply randomness to the retry delay.
+	 */
+	public static CircuitBreakerSync withHalfLife(
+			final double breakThreshold,
+			final int initialRecoverMillis,
+			final int halfLifeMillis,
+			final int minimumCalls,
+			final Chrono chrono,
+			final long seed
+	) {
+		return new CircuitBreakerSync(breakThreshold, initialRecoverMillis, 0d, halfLifeMillis, minimumCalls, chrono, seed, null, null);
+	}
+
+	/**
+	 * Creates an instance whose outcomes are also recorded by the specified `parent`, and whose calls are also rejected while the `parent` is open.
+	 * Checking the `parent` costs a volatile read in every state, and recording an outcome on it a CAS.
+	 *
+	 * @param parent               the breaker shared by this instance and its siblings. Must use the same {@link Chrono} as this instance.
+	 * @param parentListener       the listener informed of the state changes of the `parent` caused by the outcomes recorded by this instance.
+	 * @param breakThreshold       the threshold that determines when to open this circuit breaker. When the exponential moving average of the
+	 *                             proportion of failures is over this value, the circuit is opened.
+	 * @param initialRecoverMillis the amount of time that the circuit remains opened before switching to half-open state. This period is doubled
+	 *                             every consecutive failed attempt.
+	 * @param alfa                 the coefficient of the exponential moving average of the proportion of failures.
+	 * @param chrono               the chronometer used to measure the elapsed time.
+	 * @param seed                 the seed of the random numbers generator used to apply randomness to the retry delay.
+	 */
+	public static CircuitBreakerSync withParent(
+			final CircuitBreakerWindow parent,
+			final StateChangeListener parentListener,
+			final double breakThreshold,
+			final int initialRecoverMillis,
+			final double alfa,
+			final Chrono chrono,
+			final long seed
+	) {
+		return new CircuitBreakerSync(breakThreshold, initialRecoverMillis, alfa, 0, 0, chrono, seed, parent, parentListener);
 	}
 
 	/**
@@ -63,12 +180,8 @@ public class CircuitBreakerSync extends CircuitBreaker {
 			final StateChangeListener listener
 	) {
 		final var now = chrono.nanoTime();
-		if (isBroken) {
-			synchronized (this) {
-				if (isBroken && now < nextTryNano) {
-					return Optional.empty();
-				}
-			}
+		if (rejects(now)) {
+			return Optional.empty();
 		}
 		try {
 			final T result = supplier.get();
@@ -80,6 +193,185 @@ public class CircuitBreakerSync extends CircuitBreaker {
 		}
 	}
 
+	/**
+	 * Executes the specified `supplier` trough this circuit breaker, admitting it with a probability that depends on its `criticality` and on the
+	 * exponential moving average of the proportion of failures. See {@link Criticality} for the admission probability of each class. Calls of
+	 * {@link Criticality#DEFAULT} criticality are admitted exactly as {@link #execute(Supplier, Predicate, StateChangeListener)} does.
+	 *
+	 * The admission is deterministic: each class accumulates its admission probability in a lock free credit counter with every call, and a call is
+	 * admitted when the counter crosses a whole unit. So a class whose probability is 0.3 gets exactly 3 out of 10 consecutive calls admitted.
+	 *
+	 * The outcomes of the calls admitted despite the circuit being open are also added to the moving average, so that a failing service sheds even
+	 * the critical calls, but they don't close the circuit: the admission of the {@link Criticality#DEFAULT} calls is the same with or without
+	 * critical calls while it is open. Failures are considered the same way as in {@link #execute(Supplier, Predicate, StateChangeListener)}.
+	 */
+	public <T> Optional<T> execute(
+			final Criticality criticality,
+			final Supplier<T> supplier,
+			final Predicate<T> isOkDecider,
+			final StateChangeListener listener
+	) {
+		final var now = chrono.nanoTime();
+		final var isOpen = rejects(now);
+		if (!admits(criticality, isOpen)) {
+			shedCalls.incrementAndGet(criticality.ordinal());
+			return Optional.empty();
+		}
+		try {
+			final T result = supplier.get();
+			updateRevealingly(now, !isOkDecider.test(result), isOpen, listener);
+			return Optional.ofNullable(result);
+		} catch (Exception e) {
+			updateRevealingly(now, true, isOpen, listener);
+			throw e;
+		}
+	}
+
+	/**
+	 * Decides if a call of the specified criticality is admitted. The moving average is read without synchronization: a slightly outdated value only
+	 * shifts the admission of a few calls.
+	 */
+	private boolean admits(final Criticality criticality, final boolean isOpen) {
+		final var credits = criticality.admissionCredits(failuresProportionEma, breakThreshold, isOpen);
+		if (credits >= Criticality.CREDIT_UNIT) {
+			return true;
+		}
+		if (credits <= 0) {
+			return false;
+		}
+		final var previous = admissionCredits.getAndAdd(criticality.ordinal(), credits);
+		return (previous + credits) / Criticality.CREDIT_UNIT > previous / Criticality.CREDIT_UNIT;
+	}
+
+	/**
+	 * The number of calls of the specified criticality that this instance did not admit.
+	 */
+	public long shedCalls(final Criticality criticality) {
+		return shedCalls.get(criticality.ordinal());
+	}
+
+	/**
+	 * Executes the specified batch of `suppliers` trough this circuit breaker, deciding the admission of the whole batch at once and recording all
+	 * the outcomes with a single update.
+	 *
+	 * None of the received `suppliers` is called when this instance is open, in which case the returned {@link Optional} is empty. Otherwise all of
+	 * them are called, in order, and their outcomes are recorded as if the same number of calls to {@link #execute} started at the same instant had
+	 * been done sequentially. Note that when the circuit is half-open the whole batch is admitted, not a single try.
+	 *
+	 * Failures are considered the same way as in {@link #execute}. When some `supplier` terminates abruptly, the following ones are still called and
+	 * all the outcomes are recorded before the exception of the first one is rethrown.
+	 *
+	 * @return the results of the `suppliers`, in the same order, or empty if the batch was rejected.
+	 */
+	public <T> Optional<List<T>> executeBatch(
+			final List<? extends Supplier<T>> suppliers,
+			final Predicate<T> isOkDecider,
+			final StateChangeListener listener
+	) {
+		final var now = chrono.nanoTime();
+		if (rejects(now)) {
+			return Optional.empty();
+		}
+		final var results = new ArrayList<T>(suppliers.size());
+		final var outcomes = new boolean[suppliers.size()];
+		RuntimeException firstException = null;
+		for (var i = 0; i < outcomes.length; ++i) {
+			try {
+				final T result = suppliers.get(i).get();
+				results.add(result);
+				outcomes[i] = !isOkDecider.test(result);
+			} catch (RuntimeException e) {
+				results.add(null);
+				outcomes[i] = true;
+				if (firstException == null) {
+					firstException = e;
+				}
+			}
+		}
+		updateBatchRevealingly(now, outcomes, listener);
+		if (firstException != null) {
+			throw firstException;
+		}
+		return Optional.of(results);
+	}
+
+	/**
+	 * Executes the specified `supplier` trough this circuit breaker, falling back to the last successful response associated to the specified `key`
+	 * when this instance is open.
+	 *
+	 * Successful results are stored in the received `cache`. When the circuit is open, the received `supplier` is not called and the cached response
+	 * is given instead, provided it is not older than its staleness limit. The returned {@link Optional} is empty only when the circuit is open and
+	 * the cache has no fresh enough response for the `key`.
+	 *
+	 * Failures are considered the same way as in {@link #execute}.
+	 */
+	public <K, T> Optional<StaleResponseCache.Served<T>> executeWithFallback(
+			final K key,
+			final StaleResponseCache<K, T> cache,
+			final Supplier<T> supplier,
+			final Predicate<T> isOkDecider,
+			final StateChangeListener listener
+	) {
+		final var now = chrono.nanoTime();
+		if (rejects(now)) {
+			return cache.recall(key).map(response -> new StaleResponseCache.Served<>(response, true));
+		}
+		try {
+			final T result = supplier.get();
+			final var isOk = isOkDecider.test(result);
+			updateRevealingly(now, !isOk, listener);
+			if (isOk && result != null) {
+				cache.remember(key, result);
+			}
+			return Optional.ofNullable(result).map(response -> new StaleResponseCache.Served<>(response, false));
+		} catch (Exception e) {
+			updateRevealingly(now, true, listener);
+			throw e;
+		}
+	}
+
+	/**
+	 * Executes the specified `supplier` trough this circuit breaker, and retries it while it fails, up to `maxAttempts` times in total, as long as the
+	 * received `budget` allows it.
+	 *
+	 * Every attempt is admitted and recorded exactly as a call to {@link #execute} would, so each outcome is fed to the state of this instance once.
+	 * The retries stop when the circuit is open, in which case the returned {@link Optional} is empty, or when the attempts or the budget are
+	 * exhausted, in which case the result (or the exception) of the last attempt is given.
+	 */
+	public <T> Optional<T> executeWithRetries(
+			final Supplier<T> supplier,
+			final Predicate<T> isOkDecider,
+			final StateChangeListener listener,
+			final RetryBudget budget,
+			final int maxAttempts
+	) {
+		for (var attempt = 1; ; attempt++) {
+			final var now = chrono.nanoTime();
+			if (rejects(now)) {
+				return Optional.empty();
+			}
+			final T result;
+			final boolean isOk;
+			try {
+				result = supplier.get();
+				isOk = isOkDecider.test(result);
+			} catch (Exception e) {
+				updateRevealingly(now, true, listener);
+				if (attempt >= maxAttempts || !budget.tryAcquireRetry()) {
+					throw e;
+				}
+				continue;
+			}
+			updateRevealingly(now, !isOk, listener);
+			if (isOk) {
+				budget.onSuccess();
+				return Optional.ofNullable(result);
+			}
+			if (attempt >= maxAttempts || !budget.tryAcquireRetry()) {
+				return Optional.ofNullable(result);
+			}
+		}
+	}
 
 	public <T> Supplier<Optional<CompletableFuture<T>>> applyAsync(
 			final Supplier<CompletableFuture<T>> supplier,
@@ -89,18 +381,20 @@ public class CircuitBreakerSync extends CircuitBreaker {
 		return () -> executeAsync(supplier,isOkDecider, listener);
 	}
 
+	/**
+	 * Executes the asynchronous operation given by the specified `supplier` trough this circuit breaker.
+	 *
+	 * Only the results of the futures are recorded: futures that complete exceptionally or never complete are not considered failures. Use
+	 * {@link #executeAsyncWithDeadline} when that matters.
+	 */
 	public <T> Optional<CompletableFuture<T>> executeAsync(
 			final Supplier<CompletableFuture<T>> supplier,
 			final Predicate<T> isOkDecider,
 			final StateChangeListener listener
 	) {
 		final var now = chrono.nanoTime();
-		if (isBroken) {
-			synchronized (this) {
-				if (isBroken && now < nextTryNano) {
-					return Optional.empty();
-				}
-			}
+		if (rejects(now)) {
+			return Optional.empty();
 		}
 		try {
 			return Optional.of(supplier.get().thenApply(
@@ -115,12 +409,141 @@ public class CircuitBreakerSync extends CircuitBreaker {
 		}
 	}
 
+	/**
+	 * Executes the asynchronous operation given by the specified `supplier` trough this circuit breaker, enforcing a deadline on its completion.
+	 *
+	 * The received `supplier` is not called when this instance is open, in which case the returned {@link Optional} is empty. Otherwise, the future
+	 * given by the `supplier` is returned as is, after registering its deadline in the received `wheel` and attaching the recording of its outcome.
+	 * If the future is not completed when the deadline passes, the `wheel` completes it with a {@link java.util.concurrent.TimeoutException}, or
+	 * cancels it when `cancelOnTimeout` is true.
+	 *
+	 * Abrupt terminations of the `supplier` or the `isOkDecider`, exceptional completions of the future (timeouts and cancellations included), and
+	 * results such that applying the `isOkDecider` predicate to it give false; are considered failures.
+	 *
+	 * @param timeoutMillis   the maximum time the future may take to complete, measured since this method is called.
+	 * @param wheel           the timer wheel that enforces the deadline. Must use the same {@link Chrono} as this instance.
+	 * @param cancelOnTimeout whether the future is cancelled, instead of completed with a timeout exception, when the deadline passes.
+	 */
+	public <T> Optional<CompletableFuture<T>> executeAsyncWithDeadline(
+			final Supplier<CompletableFuture<T>> supplier,
+			final Predicate<T> isOkDecider,
+			final StateChangeListener listener,
+			final int timeoutMillis,
+			final DeadlineWheel wheel,
+			final boolean cancelOnTimeout
+	) {
+		final var now = chrono.nanoTime();
+		if (rejects(now)) {
+			return Optional.empty();
+		}
+		final CompletableFuture<T> future;
+		try {
+			future = supplier.get();
+		} catch (Exception e) {
+			updateRevealingly(now, true, listener);
+			throw e;
+		}
+		wheel.schedule(new RecordingDeadline<>(future, now, timeoutMillis, cancelOnTimeout, isOkDecider, listener));
+		return Optional.of(future);
+	}
+
+	/**
+	 * Tells if a call started at the specified instant should be rejected because this instance or its parent is open.
+	 */
+	private boolean rejects(final long now) {
+		if (parent != null && parent.rejects(now)) {
+			return true;
+		}
+		if (isBroken) {
+			synchronized (this) {
+				return isBroken && now < nextTryNano;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gives a consistent copy of the state of this instance.
+	 */
+	@Override
+	public synchronized State state() {
+		return super.state();
+	}
+
+	/**
+	 * Replaces the state of this instance inside the synchronized section. See {@link CircuitBreaker#restore}.
+	 */
+	@Override
+	public synchronized void restore(final State state) {
+		super.restore(state);
+	}
+
+	/**
+	 * Updates the state of this instance with the outcomes of a batch of calls and informs the listener of any change.
+	 */
+	private void updateBatchRevealingly(
+			final long now,
+			final boolean[] hasFailed,
+			final StateChangeListener listener
+	) {
+		final boolean brokenStateChanged;
+		final boolean failuresProportionChanged;
+		final boolean triesChanged;
+		final boolean newBrokenState;
+		final double newFailuresProportion;
+		final int newTries;
+
+		synchronized (this) {
+			final var previousBrokenState = isBroken;
+			final var previousFailuresProportion = failuresProportionEma;
+			final var previousTries = tries;
+
+			updateBatch(now, hasFailed, hasFailed.length);
+
+			newBrokenState = isBroken;
+			newFailuresProportion = failuresProportionEma;
+			newTries = tries;
+			// only the net changes caused by the whole batch are reported.
+			brokenStateChanged = newBrokenState != previousBrokenState;
+			failuresProportionChanged = Math.abs(newFailuresProportion - previousFailuresProportion) > ONE_PERCENT;
+			triesChanged = newTries != previousTries;
+		}
+		if (brokenStateChanged) {
+			listener.brokenStateChanged(newBrokenState);
+		}
+		if (failuresProportionChanged) {
+			listener.failuresProportionChanged(newFailuresProportion);
+		}
+		if (triesChanged) {
+			listener.triesChanged(newTries);
+		}
+		if (parent != null) {
+			for (final var outcome : hasFailed) {
+				parent.record(now, outcome, parentListener);
+			}
+		}
+	}
+
+	/**
+	 * Updates the state of this instance and informs the listener of any change.
+	 */
+	private void updateRevealingly(
+			final long now,
+			final boolean hasFailed,
+			final StateChangeListener listener
+	) {
+		updateRevealingly(now, hasFailed, false, listener);
+	}
+
 	/**
 	 * Updates the state of this instance and informs the listener of any change.
+	 *
+	 * @param bypassedOpen whether the call was admitted despite this instance or its parent being open, because of its criticality.
 	 */
 	private void updateRevealingly(
 			final long now,
 			final boolean hasFailed,
+			final boolean bypassedOpen,
 			final StateChangeListener listener
 	) {
 
@@ -136,7 +559,11 @@ public class CircuitBreakerSync extends CircuitBreaker {
 			copyOfFailuresProportion = failuresProportionEma;
 			copyOfTries = tries;
 
-			update(now, hasFailed);
+			if (bypassedOpen) {
+				updateBypassingOpen(now, hasFailed);
+			} else {
+				update(now, hasFailed);
+			}
 
 			brokenStateChanged = isBroken != copyOfBrokenState;
 			failuresProportionChanged =
@@ -156,5 +583,46 @@ public class CircuitBreakerSync extends CircuitBreaker {
 		if (triesChanged) {
 			listener.triesChanged(copyOfTries);
 		}
+		if (parent != null) {
+			if (bypassedOpen) {
+				parent.recordBypassingOpen(now, hasFailed, parentListener);
+			} else {
+				parent.record(now, hasFailed, parentListener);
+			}
+		}
+	}
+
+	/**
+	 * The deadline of a call done by {@link #executeAsyncWithDeadline}, which also records the outcome of the call when its future completes.
+	 */
+	private final class RecordingDeadline<T> extends DeadlineWheel.Deadline<T> {
+		private final long startNano;
+		private final Predicate<T> isOkDecider;
+		private final StateChangeListener listener;
+
+		RecordingDeadline(
+				final CompletableFuture<T> future,
+				final long startNano,
+				final int timeoutMillis,
+				final boolean cancelOnTimeout,
+				final Predicate<T> isOkDecider,
+				final StateChangeListener listener
+		) {
+			super(future, startNano + timeoutMillis * NANOS_PER_MILLI, cancelOnTimeout);
+			this.startNano = startNano;
+			this.isOkDecider = isOkDecider;
+			this.listener = listener;
+		}
+
+		@Override
+		protected void onCompletion(final T result, final Throwable failure) {
+			boolean hasFailed;
+			try {
+				hasFailed = failure != null || !isOkDecider.test(result);
+			} catch (Exception e) {
+				hasFailed = true;
+			}
+			updateRevealingly(startNano, hasFailed, listener);
+		}
 	}
 }
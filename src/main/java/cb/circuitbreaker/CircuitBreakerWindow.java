@@ -0,0 +1,273 @@
+package cb.circuitbreaker;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A circuit breaker that decides based on the proportion of failures during a sliding time window, instead of an exponential moving average.
+ *
+ * The window is a ring of buckets, each covering a fixed slice of time. Every bucket is a pair of {@code long} counters, one for the successes and
+ * the other for the failures, each packing the slice it belongs to (its epoch) and the count; so recording an outcome is a single CAS with no
+ * allocation nor lock. The ring advances lazily: a counter whose epoch is old is reset by the first outcome recorded on it after its slice is over,
+ * and ignored by the readers. The memory used by the window is sixteen bytes per bucket.
+ *
+ * The open and half-open behaviour is the same as the one of {@link CircuitBreakerSync}: the state transitions, which are rare, are done inside a
+ * synchronized section. The admission check is a single volatile read in every state, so the children of an open parent do not contend for its
+ * lock.
+ */
+public class CircuitBreakerWindow extends CircuitBreaker {
+
+	/**
+	 * The counts are stored in the low 40 bits of each counter. That many outcomes in a single slice are unreachable, so the counters never
+	 * saturate.
+	 */
+	private static final int EPOCH_SHIFT = 40;
+	private static final long COUNT_MASK = (1L << EPOCH_SHIFT) - 1;
+	/**
+	 * The epochs are stored modulo 2^24. A counter untouched during exactly a multiple of 2^24 slices would be taken as current, which with slices
+	 * of a few milliseconds requires many hours of inactivity.
+	 */
+	private static final long EPOCH_MASK = (1L << (Long.SIZE - EPOCH_SHIFT)) - 1;
+
+	/**
+	 * The duration of the time slice covered by each bucket.
+	 */
+	private final long bucketNanos;
+	/**
+	 * The ring of buckets. See the class documentation. The successes counter of the bucket i is at index 2i, and the failures counter at 2i + 1.
+	 */
+	private final AtomicLongArray counters;
+	private final int numberOfBuckets;
+	/**
+	 * The instant until which the calls are rejected: the {@code nextTryNano} while the circuit is open, and {@link Long#MIN_VALUE} while it is
+	 * closed. Written inside the synchronized section by every state transition, so that {@link #rejects} reads the open flag and the instant of
+	 * the next try at once, without the lock.
+	 */
+	private volatile long rejectUntilNano = Long.MIN_VALUE;
+
+	/**
+	 * Construct an instance specifying all the parameters.
+	 *
+	 * @param breakThreshold       the threshold that determines when to open this circuit breaker. When the proportion of failures during the
+	 *                             window is over this value, the circuit is opened.
+	 * @param initialRecoverMillis the amount of time that the circuit remains opened before switching to half-open state. This period is doubled
+	 *                             every consecutive failed attempt.
+	 * @param windowMillis         the duration of the sliding window.
+	 * @param numberOfBuckets      in how many buckets the window is divided. Determines how smoothly the window slides.
+	 * @param minimumCalls         the minimum number of calls during the window for the proportion of failures to be considered.
+	 * @param chrono               the chronometer used to measure the elapsed time.
+	 * @param seed                 the seed of the random numbers generator used to apply randomness to the retry delay.
+	 */
+	public CircuitBreakerWindow(
+			final double breakThreshold,
+			final int initialRecoverMillis,
+			final int windowMillis,
+			final int numberOfBuckets,
+			final int minimumCalls,
+			final Chrono chrono,
+			final long seed
+	) {
+		// the exponential moving average is not used by this kind of circuit breaker; the minimum applies to the number of calls in the window.
+		super(breakThreshold, initialRecoverMillis, 0d, 0, minimumCalls, chrono, seed);
+		this.bucketNanos = Math.max(1, windowMillis * NANOS_PER_MILLI / numberOfBuckets);
+		this.numberOfBuckets = numberOfBuckets;
+		this.counters = new AtomicLongArray(2 * numberOfBuckets);
+	}
+
+	/**
+	 * Executes the specified `supplier` trough this circuit breaker.
+	 *
+	 * The received `supplier` is not called when this instance is open.
+	 *
+	 * The circuit is opened when the proportion of failures ({@code failures/(failures + successes)}) during the sliding window crosses the
+	 * `breakThreshold`.
+	 *
+	 * Both; abrupt terminations of either, the received `supplier` or the `isOkDecider`, and results such that applying the `isOkDecider` predicate to it give
+	 * false; are considered failures.
+	 */
+	public <T> Optional<T> execute(
+			final Supplier<T> supplier,
+			final Predicate<T> isOkDecider,
+			final StateChangeListener listener
+	) {
+		final var now = chrono.nanoTime();
+		if (rejects(now)) {
+			return Optional.empty();
+		}
+		try {
+			final T result = supplier.get();
+			record(now, !isOkDecider.test(result), listener);
+			return Optional.ofNullable(result);
+		} catch (Exception e) {
+			record(now, true, listener);
+			throw e;
+		}
+	}
+
+	/**
+	 * Tells if a call started at the specified instant should be rejected because the circuit is open. Costs a volatile read.
+	 */
+	boolean rejects(final long now) {
+		return now < rejectUntilNano;
+	}
+
+	/**
+	 * Records the outcome of a call and, if needed, changes the state of this instance and informs the listener.
+	 *
+	 * While the circuit is closed the outcome is added to the window with a CAS, and the window is summed only after a failure. While the circuit is
+	 * open or half-open, the outcome is not added to the window and the transition is done inside a synchronized section.
+	 */
+	void record(final long now, final boolean hasFailed, final StateChangeListener listener) {
+		if (!isBroken) {
+			count(now, hasFailed);
+			if (hasFailed && exceedsThreshold(now)) {
+				final boolean opened;
+				synchronized (this) {
+					opened = !isBroken;
+					if (opened) {
+						open(now);
+					}
+				}
+				if (opened) {
+					listener.brokenStateChanged(true);
+				}
+			}
+			return;
+		}
+		final boolean closed;
+		final int newTries;
+		synchronized (this) {
+			if (!isBroken) {
+				// another thread closed the circuit since the check above. This outcome is not counted, as if it had arrived earlier.
+				return;
+			}
+			final var previousTries = tries;
+			closed = !hasFailed;
+			if (closed) {
+				clearWindow();
+				close();
+			} else if (now >= nextTryNano) {
+				postponeTry(now);
+			}
+			newTries = tries == previousTries ? -1 : tries;
+		}
+		if (closed) {
+			listener.brokenStateChanged(false);
+		}
+		if (newTries >= 0) {
+			listener.triesChanged(newTries);
+		}
+	}
+
+	/**
+	 * Records the outcome of a call that was admitted despite the circuit being open, because of its criticality. While the circuit is still open
+	 * the outcome is only counted, so that it neither closes nor reopens the circuit, which only the tries done at or after {@code nextTryNano}
+	 * do. Otherwise, when the circuit was closed or became half-open meanwhile, it is the same as {@link #record}.
+	 */
+	void recordBypassingOpen(final long now, final boolean hasFailed, final StateChangeListener listener) {
+		if (now < rejectUntilNano) {
+			count(now, hasFailed);
+		} else {
+			record(now, hasFailed, listener);
+		}
+	}
+
+	/**
+	 * Adds an outcome to the bucket of the current time slice, resetting the counter first if it belongs to a past slice.
+	 */
+	private void count(final long now, final boolean hasFailed) {
+		final var epoch = Math.floorDiv(now, bucketNanos);
+		final var index = 2 * (int) Math.floorMod(epoch, (long) numberOfBuckets) + (hasFailed ? 1 : 0);
+		final var tag = epoch & EPOCH_MASK;
+		long current;
+		long next;
+		do {
+			current = counters.get(index);
+			next = current >>> EPOCH_SHIFT == tag ? current + 1 : tag << EPOCH_SHIFT | 1L;
+		} while (!counters.compareAndSet(index, current, next));
+	}
+
+	/**
+	 * Tells if the proportion of failures during the window ending at the specified instant is above the threshold.
+	 */
+	private boolean exceedsThreshold(final long now) {
+		final var tag = Math.floorDiv(now, bucketNanos) & EPOCH_MASK;
+		final var failures = sumCurrent(1, tag);
+		final var total = sumCurrent(0, tag) + failures;
+		return total >= minimumCalls && failures > breakThreshold * total;
+	}
+
+	/**
+	 * Sums the buckets of the window ending at the specified instant. Allocates the returned array, so it is used by {@link #state()} and the
+	 * checks, not by the request path.
+	 *
+	 * @return an array whose first element is the number of successes and the second the number of failures.
+	 */
+	long[] windowCounts(final long now) {
+		final var tag = Math.floorDiv(now, bucketNanos) & EPOCH_MASK;
+		return new long[]{sumCurrent(0, tag), sumCurrent(1, tag)};
+	}
+
+	/**
+	 * Sums the counters of the specified kind (0 for successes, 1 for failures) whose epoch is within the window that ends at the slice with the
+	 * specified tag.
+	 */
+	private long sumCurrent(final int kind, final long tag) {
+		var sum = 0L;
+		for (var i = kind; i < counters.length(); i += 2) {
+			final var counter = counters.get(i);
+			if (((tag - (counter >>> EPOCH_SHIFT)) & EPOCH_MASK) < numberOfBuckets) {
+				sum += counter & COUNT_MASK;
+			}
+		}
+		return sum;
+	}
+
+	@Override
+	protected void open(final long now) {
+		super.open(now);
+		rejectUntilNano = nextTryNano;
+	}
+
+	@Override
+	protected void postponeTry(final long now) {
+		super.postponeTry(now);
+		rejectUntilNano = nextTryNano;
+	}
+
+	@Override
+	protected void close() {
+		super.close();
+		rejectUntilNano = Long.MIN_VALUE;
+	}
+
+	private void clearWindow() {
+		for (var i = 0; i < counters.length(); ++i) {
+			counters.set(i, 0L);
+		}
+	}
+
+	/**
+	 * Gives a consistent copy of the state of this instance. The {@code failuresProportionEma} of the copy is the proportion of failures during the
+	 * window.
+	 */
+	@Override
+	public synchronized State state() {
+		final var counts = windowCounts(chrono.nanoTime());
+		final var total = counts[0] + counts[1];
+		return new State(isBroken, nextTryNano, total == 0 ? 0d : (double) counts[1] / total, tries);
+	}
+
+	/**
+	 * Replaces the open or half-open state of this instance inside the synchronized section, and empties the window. The proportion of failures of
+	 * the specified state is ignored because the window keeps counts, not proportions; so a closed circuit is restored with an empty window.
+	 */
+	@Override
+	public synchronized void restore(final State state) {
+		clearWindow();
+		super.restore(state);
+		rejectUntilNano = state.isBroken ? state.nextTryNano : Long.MIN_VALUE;
+	}
+}
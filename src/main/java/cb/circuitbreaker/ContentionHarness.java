@@ -0,0 +1,791 @@
+package cb.circuitbreaker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static cb.circuitbreaker.Printer.print;
+
+/**
+ * Hammers the circuit breaker implementations from many threads and checks that their state transitions stay consistent under contention. Its
+ * purpose is to validate any implementation that updates the state with less synchronization than {@link CircuitBreakerSync}.
+ *
+ * For each implementation, the following checks are done:
+ * <ul>
+ *     <li>lost failures: many threads record failures concurrently on a circuit that never opens. The recorded failures (the exponential moving
+ *     average of the proportion of failures, or the window counters) must end where the same number of sequential failures would leave them.</li>
+ *     <li>open admissions: many threads call through an open circuit while the clock is frozen before {@code nextTryNano}. No call may be admitted.
+ *     After the clock passes {@code nextTryNano} the number of half-open admissions is reported.</li>
+ *     <li>state consistency: many threads call with random outcomes while the clock advances and a monitor samples the state. A closed circuit
+ *     must have zero tries, and the moving average must stay between zero and one.</li>
+ *     <li>throughput: many threads call through a mostly closed circuit during a fixed time, and the calls per second are reported.</li>
+ * </ul>
+ *
+ * Additionally, the batch API of {@link CircuitBreakerSync} is checked to leave the state as the equivalent sequence of single updates, and its
+ * throughput is measured for batch sizes from 1 to {@link #MAX_BATCH_SIZE}; the time decayed moving average is checked to ignore a single failure
+ * after an idle period, and the admission of the calls without criticality to be unaffected by the critical calls admitted while the circuit, or
+ * its parent, is open, and a closed circuit to admit all the critical calls; the {@link DeadlineWheel} is checked to expire, neither early nor
+ * twice, every call of {@link CircuitBreakerSync#executeAsyncWithDeadline} that does not complete in time; and the {@link StaleResponseCache} is
+ * checked to evict the oldest keys and to stay bounded when many threads store new keys. Finally, the {@link BreakerRegistry} is checked to restore
+ * the states saved by snapshots taken concurrently by all the threads, including the one of a breaker with a name longer than 32767 bytes, to
+ * breakers registered after some periodic snapshots or by a later incarnation.
+ */
+public class ContentionHarness {
+
+	/**
+	 * How many more failures than the expected may be lost before the lost failures check fails. Covers the floating point rounding difference
+	 * between the sequential and the closed form calculation.
+	 */
+	private static final double MAX_LOST_FAILURES = 0.5;
+	private static final int CALLS_PER_THREAD = 20_000;
+	private static final long CHECK_DURATION_NANOS = 1_000_000_000L;
+	private static final int MAX_BATCH_SIZE = 1024;
+	/**
+	 * How many batches of random outcomes are compared with the equivalent sequence of single updates.
+	 */
+	private static final int EQUIVALENCE_BATCHES = 20_000;
+	/**
+	 * The maximum difference between the moving averages of the batched and the sequential updates. Covers the floating point rounding difference
+	 * between the closed form and the sequential calculation.
+	 */
+	private static final double MAX_EMA_DIFFERENCE = 1e-9;
+	/**
+	 * How many open periods are compared with and without critical calls by the mixed criticality check.
+	 */
+	private static final int MIXED_CRITICALITY_CYCLES = 1000;
+	/**
+	 * The period of the snapshots taken by the registry of the second incarnation of the snapshot round trip check, before its breakers are
+	 * registered.
+	 */
+	private static final int SNAPSHOT_PERIOD_MILLIS = 50;
+	/**
+	 * The maximum number of entries of the {@link StaleResponseCache} used by the eviction checks, and how many distinct keys are stored in it.
+	 */
+	private static final int CACHE_MAX_ENTRIES = 100;
+	private static final int CACHE_STORED_KEYS = 100_000;
+	/**
+	 * The timeout of the calls of the deadlines check, and how long the check waits, at most, for the late calls to expire. The wait is long
+	 * because the ticker thread expires most of the late calls after the hammering threads finish, when there are many threads per processor.
+	 */
+	private static final int DEADLINE_TIMEOUT_MILLIS = 5;
+	private static final long DEADLINE_WAIT_NANOS = 20_000_000_000L;
+	private static final CircuitBreaker.StateChangeListener NO_LISTENER = new CircuitBreaker.StateChangeListener() {
+		@Override
+		public void brokenStateChanged(boolean isBroken) {
+		}
+
+		@Override
+		public void failuresProportionChanged(double newValue) {
+		}
+
+		@Override
+		public void triesChanged(int newValue) {
+		}
+	};
+
+	private final int threads;
+	private final Map<String, SubjectFactory> factories = new LinkedHashMap<>();
+
+	/**
+	 * @param threads how many threads hammer each circuit breaker.
+	 */
+	public ContentionHarness(int threads) {
+		this.threads = threads;
+		factories.put("sync", (threshold, recoverMillis, alfa, chrono) -> {
+			var breaker = new CircuitBreakerSync(threshold, recoverMillis, alfa, chrono, 1);
+			return new Subject() {
+				@Override
+				public boolean call(BooleanSupplier operation) {
+					return breaker.execute(operation::getAsBoolean, isOk -> isOk, NO_LISTENER).isPresent();
+				}
+
+				@Override
+				public CircuitBreaker.State state() {
+					return breaker.state();
+				}
+			};
+		});
+		factories.put("window", (threshold, recoverMillis, alfa, chrono) -> {
+			var breaker = new CircuitBreakerWindow(threshold, recoverMillis, 100, 10, 1, chrono, 1);
+			return new Subject() {
+				@Override
+				public boolean call(BooleanSupplier operation) {
+					return breaker.execute(operation::getAsBoolean, isOk -> isOk, NO_LISTENER).isPresent();
+				}
+
+				@Override
+				public CircuitBreaker.State state() {
+					return breaker.state();
+				}
+
+				@Override
+				public double recordedFailures(double alfa) {
+					return breaker.windowCounts(chrono.nanoTime())[1];
+				}
+			};
+		});
+		factories.put("child", (threshold, recoverMillis, alfa, chrono) -> {
+			var parent = new CircuitBreakerWindow(threshold, recoverMillis, 100, 10, 2, chrono, 1);
+			var breaker = CircuitBreakerSync.withParent(parent, NO_LISTENER, threshold, recoverMillis, alfa, chrono, 1);
+			return new Subject() {
+				@Override
+				public boolean call(BooleanSupplier operation) {
+					return breaker.execute(operation::getAsBoolean, isOk -> isOk, NO_LISTENER).isPresent();
+				}
+
+				@Override
+				public CircuitBreaker.State state() {
+					return breaker.state();
+				}
+			};
+		});
+		factories.put("exec", (threshold, recoverMillis, alfa, chrono) -> {
+			var executor = Executors.newSingleThreadExecutor();
+			var breaker = new CircuitBreakerExec(threshold, recoverMillis, alfa, chrono, executor, 1);
+			return new Subject() {
+				@Override
+				public boolean call(BooleanSupplier operation) {
+					return breaker.executeAsync(() -> CompletableFuture.completedFuture(operation.getAsBoolean()), isOk -> isOk, NO_LISTENER)
+							.join()
+							.isPresent();
+				}
+
+				@Override
+				public CircuitBreaker.State state() {
+					return breaker.state();
+				}
+
+				@Override
+				public void close() {
+					executor.shutdown();
+				}
+			};
+		});
+	}
+
+	public static void main(String[] args) {
+		var threads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+		var allPassed = new ContentionHarness(threads).run();
+		Printer.shutdown();
+		if (!allPassed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs all the checks on every implementation and shows the results.
+	 *
+	 * @return true if all the checks passed.
+	 */
+	boolean run() {
+		print("Hammering the circuit breakers with %d threads.%n", threads);
+		var allPassed = true;
+		for (var e : factories.entrySet()) {
+			var name = e.getKey();
+			var factory = e.getValue();
+			allPassed &= report(name, "lost failures", checkLostFailures(factory));
+			allPassed &= report(name, "open admissions", checkOpenAdmissions(name, factory));
+			allPassed &= report(name, "state consistency", checkStateConsistency(factory));
+			print("%8s - %-20s: %,.0f calls/s%n", name, "throughput", measureThroughput(factory));
+		}
+		allPassed &= report("sync", "batch per call decay", checkBatchEquivalence(false));
+		allPassed &= report("sync", "batch time decay", checkBatchEquivalence(true));
+		allPassed &= report("sync", "failure after idle", checkFailureAfterIdle());
+		allPassed &= report("sync", "mixed criticality", checkMixedCriticality(false));
+		allPassed &= report("child", "mixed criticality", checkMixedCriticality(true));
+		allPassed &= report("sync", "critical when closed", checkCriticalWhileClosed());
+		for (var batchSize = 1; batchSize <= MAX_BATCH_SIZE; batchSize *= 4) {
+			print("%8s - %-20s: %,.0f calls/s%n", "sync", "batch of " + batchSize, measureBatchThroughput(batchSize));
+		}
+		allPassed &= report("wheel", "deadlines", checkDeadlines());
+		allPassed &= report("cache", "eviction order", checkCacheEvictionOrder());
+		allPassed &= report("cache", "bounded size", checkCacheBoundedSize());
+		allPassed &= report("registry", "snapshot round trip", checkSnapshotRoundTrip());
+		return allPassed;
+	}
+
+	private static boolean report(String name, String check, String violation) {
+		print("%8s - %-20s: %s%n", name, check, violation == null ? "passed" : "FAILED - " + violation);
+		return violation == null;
+	}
+
+	/**
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkLostFailures(SubjectFactory factory) {
+		// an alfa small enough to keep the expected moving average far from 1, where a lost failure would be invisible.
+		final var alfa = 0.25 / threads / CALLS_PER_THREAD;
+		final var subject = factory.create(1.0, 1000, alfa, () -> 0L);
+		try {
+			hammer(index -> subject.call(() -> false));
+			var lostFailures = (double) threads * CALLS_PER_THREAD - subject.recordedFailures(alfa);
+			return Math.abs(lostFailures) > MAX_LOST_FAILURES
+					? String.format("%.1f failures lost (%s)", lostFailures, subject.state())
+					: null;
+		} finally {
+			subject.close();
+		}
+	}
+
+	/**
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkOpenAdmissions(String name, SubjectFactory factory) {
+		final var clock = new AtomicLong();
+		final var subject = factory.create(0.5, 1000, 0.5, clock::get);
+		try {
+			subject.call(() -> false);
+			subject.call(() -> false);
+			var opened = subject.state();
+			if (!opened.isBroken) {
+				return "the circuit did not open after two sequential failures";
+			}
+			clock.set(opened.nextTryNano - 1);
+			var admittedWhileOpen = new LongAdder();
+			hammer(index -> subject.call(() -> {
+				admittedWhileOpen.increment();
+				return false;
+			}));
+			clock.set(opened.nextTryNano);
+			var admittedWhileHalfOpen = new LongAdder();
+			hammer(index -> subject.call(() -> {
+				admittedWhileHalfOpen.increment();
+				return false;
+			}));
+			print("%8s - %-20s: %d%n", name, "half-open admissions", admittedWhileHalfOpen.sum());
+			return admittedWhileOpen.sum() > 0
+					? String.format("%d calls admitted before nextTryNano", admittedWhileOpen.sum())
+					: null;
+		} finally {
+			subject.close();
+		}
+	}
+
+	/**
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkStateConsistency(SubjectFactory factory) {
+		final var clock = new AtomicLong();
+		final var subject = factory.create(0.5, 2, 0.05, clock::get);
+		final var stop = new AtomicBoolean();
+		final var violation = new String[1];
+		var ticker = new Thread(() -> {
+			while (!stop.get()) {
+				clock.addAndGet(CircuitBreaker.NANOS_PER_MILLI / 10);
+				LockSupport.parkNanos(10_000);
+			}
+		});
+		var monitor = new Thread(() -> {
+			while (!stop.get() && violation[0] == null) {
+				var state = subject.state();
+				if (!state.isBroken && state.tries != 0) {
+					violation[0] = "closed with nonzero tries: " + state;
+				} else if (state.tries < 0 || state.failuresProportionEma < 0 || state.failuresProportionEma > 1) {
+					violation[0] = "out of range: " + state;
+				}
+			}
+		});
+		try {
+			ticker.start();
+			monitor.start();
+			hammer(index -> {
+				// the failure probability alternates between 10% and 90% every 50 simulated milliseconds.
+				var failureProbability = (clock.get() / (50 * CircuitBreaker.NANOS_PER_MILLI)) % 2 == 0 ? 0.1 : 0.9;
+				subject.call(() -> (index * 0x9e3779b97f4a7c15L >>> 11) * 0x1.0p-53 >= failureProbability);
+			});
+		} finally {
+			stop.set(true);
+			joinQuietly(ticker);
+			joinQuietly(monitor);
+			subject.close();
+		}
+		return violation[0];
+	}
+
+	/**
+	 * Feeds the same random batches of outcomes to two circuit breakers, one with {@link CircuitBreaker#updateBatch} and the other with the
+	 * equivalent sequence of {@link CircuitBreaker#update} calls, and compares their states after each batch. The outcomes come in bursts, so that
+	 * the circuits open and close many times.
+	 *
+	 * @param timeBased whether the moving average decays with the elapsed time instead of with the number of calls.
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkBatchEquivalence(boolean timeBased) {
+		final var clock = new AtomicLong();
+		final var batched = timeBased
+				? CircuitBreakerSync.withHalfLife(0.5, 2, 1, 10, clock::get, 1)
+				: new CircuitBreakerSync(0.5, 2, 0.05, clock::get, 1);
+		final var sequential = timeBased
+				? CircuitBreakerSync.withHalfLife(0.5, 2, 1, 10, clock::get, 1)
+				: new CircuitBreakerSync(0.5, 2, 0.05, clock::get, 1);
+		final var random = new SplittableRandom(threads);
+		final var outcomes = new boolean[64];
+		for (var batch = 0; batch < EQUIVALENCE_BATCHES; ++batch) {
+			clock.addAndGet(random.nextLong(CircuitBreaker.NANOS_PER_MILLI));
+			final var failureProbability = (batch / 100) % 2 == 0 ? 0.1 : 0.9;
+			final var count = random.nextInt(outcomes.length + 1);
+			for (var i = 0; i < count; ++i) {
+				outcomes[i] = random.nextDouble() < failureProbability;
+			}
+			final var now = clock.get();
+			batched.updateBatch(now, outcomes, count);
+			for (var i = 0; i < count; ++i) {
+				sequential.update(now, outcomes[i]);
+			}
+			final var expected = sequential.state();
+			final var actual = batched.state();
+			if (expected.isBroken != actual.isBroken || expected.tries != actual.tries || expected.nextTryNano != actual.nextTryNano
+					|| Math.abs(expected.failuresProportionEma - actual.failuresProportionEma) > MAX_EMA_DIFFERENCE) {
+				return String.format("batch %d: expected %s but was %s", batch, expected, actual);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks that a circuit breaker whose moving average decays with the elapsed time does not open on a single failure after an idle period, nor
+	 * after being restored, but still opens when enough failures follow.
+	 *
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkFailureAfterIdle() {
+		final var minimumCalls = 10;
+		final var clock = new AtomicLong();
+		final var breaker = CircuitBreakerSync.withHalfLife(0.5, 2, 1, minimumCalls, clock::get, 1);
+		for (var i = 0; i < 100; ++i) {
+			breaker.update(clock.get(), false);
+		}
+		clock.addAndGet(1000 * CircuitBreaker.NANOS_PER_MILLI);
+		breaker.update(clock.get(), true);
+		if (breaker.state().isBroken) {
+			return "a single failure after an idle period opened the circuit";
+		}
+		breaker.restore(new CircuitBreaker.State(false, 0, 0.4, 0));
+		breaker.update(clock.get(), true);
+		if (breaker.state().isBroken) {
+			return "a single failure after a restore opened the circuit";
+		}
+		for (var i = 0; i < minimumCalls && !breaker.state().isBroken; ++i) {
+			breaker.update(clock.get(), true);
+		}
+		return breaker.state().isBroken ? null : String.format("%d consecutive failures did not open the circuit", minimumCalls + 1);
+	}
+
+	/**
+	 * Opens two circuit breakers with the same failures and, while they are open, calls both with the same {@link Criticality#DEFAULT} calls, and
+	 * one of them also with {@link Criticality#CRITICAL} calls with random outcomes. Checks that both admit the same default calls until the first
+	 * try after the open period closes them.
+	 *
+	 * @param withParent whether the breakers are children of a parent, which is the one that opens, and the critical calls are done by a sibling
+	 *                   of the breaker that does the default calls.
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkMixedCriticality(boolean withParent) {
+		final var random = new SplittableRandom(threads);
+		for (var cycle = 0; cycle < MIXED_CRITICALITY_CYCLES; ++cycle) {
+			final var clock = new AtomicLong();
+			final var aloneParent = withParent ? new CircuitBreakerWindow(0.5, 10, 100, 10, 2, clock::get, cycle) : null;
+			final var mixedParent = withParent ? new CircuitBreakerWindow(0.5, 10, 100, 10, 2, clock::get, cycle) : null;
+			final var alone = newMixedCriticalityBreaker(aloneParent, clock, cycle);
+			final var mixed = newMixedCriticalityBreaker(mixedParent, clock, cycle);
+			final var critical = withParent ? newMixedCriticalityBreaker(mixedParent, clock, cycle) : mixed;
+			final CircuitBreaker aloneOpened = withParent ? aloneParent : alone;
+			final CircuitBreaker mixedOpened = withParent ? mixedParent : mixed;
+			while (!aloneOpened.state().isBroken) {
+				alone.execute(Criticality.DEFAULT, () -> false, isOk -> isOk, NO_LISTENER);
+				mixed.execute(Criticality.DEFAULT, () -> false, isOk -> isOk, NO_LISTENER);
+			}
+			for (var call = 0; ; ++call) {
+				clock.addAndGet(random.nextLong(CircuitBreaker.NANOS_PER_MILLI));
+				final var isAdmittedAlone = alone.execute(Criticality.DEFAULT, () -> true, isOk -> isOk, NO_LISTENER).isPresent();
+				final var isAdmittedMixed = mixed.execute(Criticality.DEFAULT, () -> true, isOk -> isOk, NO_LISTENER).isPresent();
+				if (isAdmittedAlone != isAdmittedMixed) {
+					return String.format("cycle %d, call %d: the default call was %s with critical calls and %s without them", cycle, call,
+							isAdmittedMixed ? "admitted" : "rejected", isAdmittedAlone ? "admitted" : "rejected");
+				}
+				if (!aloneOpened.state().isBroken) {
+					if (mixedOpened.state().isBroken) {
+						return String.format("cycle %d: the try after the open period did not close the circuit with critical calls", cycle);
+					}
+					break;
+				}
+				// after the default call, so that the first try after the open period is a default call in both breakers.
+				final var isCriticalOk = random.nextBoolean();
+				critical.execute(Criticality.CRITICAL, () -> isCriticalOk, isOk -> isOk, NO_LISTENER);
+			}
+		}
+		return null;
+	}
+
+	private static CircuitBreakerSync newMixedCriticalityBreaker(CircuitBreakerWindow parent, AtomicLong clock, long seed) {
+		return parent == null
+				? new CircuitBreakerSync(0.5, 10, 0.05, clock::get, seed)
+				: CircuitBreakerSync.withParent(parent, NO_LISTENER, 0.5, 10, 0.05, clock::get, seed);
+	}
+
+	/**
+	 * Checks that a closed circuit breaker whose moving average is over the break threshold, because its weight is below the minimum, admits all
+	 * the {@link Criticality#CRITICAL} calls, as it does with the {@link Criticality#DEFAULT} ones.
+	 *
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkCriticalWhileClosed() {
+		final var minimumCalls = 10;
+		final var clock = new AtomicLong();
+		final var breaker = CircuitBreakerSync.withHalfLife(0.5, 10, 1000, minimumCalls, clock::get, 1);
+		for (var i = 0; i < minimumCalls / 2; ++i) {
+			breaker.update(clock.get(), true);
+		}
+		for (var i = 0; i < minimumCalls / 2 - 1; ++i) {
+			if (breaker.execute(Criticality.CRITICAL, () -> true, isOk -> false, NO_LISTENER).isEmpty()) {
+				return String.format("the critical call %d was rejected by a closed circuit with %s", i, breaker.state());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Makes all the threads call through {@link CircuitBreakerSync#executeAsyncWithDeadline}, with operations that either complete immediately or
+	 * never, and checks that the {@link DeadlineWheel} expires all the latter, after their deadline, exactly once, and none of the former.
+	 *
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkDeadlines() {
+		// a threshold that is never exceeded, so that no call is rejected.
+		final var breaker = new CircuitBreakerSync(1.0, 1000, 0.01, System::nanoTime, 1);
+		final var late = new LongAdder();
+		final var expiredLate = new LongAdder();
+		final var expiredEarly = new LongAdder();
+		final var wrongOutcome = new LongAdder();
+		try (var wheel = new DeadlineWheel(1, 64, System::nanoTime)) {
+			hammer(index -> {
+				final var deadlineNano = System.nanoTime() + DEADLINE_TIMEOUT_MILLIS * CircuitBreaker.NANOS_PER_MILLI;
+				final var isLate = index % 2 == 1;
+				// half the late calls are cancelled, and the other half completed with a timeout exception.
+				final var cancel = index % 4 == 1;
+				breaker.executeAsyncWithDeadline(
+						() -> isLate ? new CompletableFuture<Boolean>() : CompletableFuture.completedFuture(true),
+						isOk -> isOk,
+						NO_LISTENER,
+						DEADLINE_TIMEOUT_MILLIS,
+						wheel,
+						cancel
+				).orElseThrow().whenComplete((isOk, failure) -> {
+					if (!isLate) {
+						if (failure != null) {
+							wrongOutcome.increment();
+						}
+						return;
+					}
+					if (System.nanoTime() < deadlineNano) {
+						expiredEarly.increment();
+					}
+					if (cancel ? failure instanceof CancellationException : failure instanceof TimeoutException) {
+						expiredLate.increment();
+					} else {
+						wrongOutcome.increment();
+					}
+				});
+				if (isLate) {
+					late.increment();
+				}
+			});
+			final var waitEnd = System.nanoTime() + DEADLINE_WAIT_NANOS;
+			while (expiredLate.sum() + wrongOutcome.sum() < late.sum() && System.nanoTime() < waitEnd) {
+				LockSupport.parkNanos(CircuitBreaker.NANOS_PER_MILLI);
+			}
+			if (expiredLate.sum() != late.sum() || wheel.expirations() != late.sum()) {
+				return String.format("%d late calls, but %d expired as expected and the wheel counted %d expirations", late.sum(), expiredLate.sum(),
+						wheel.expirations());
+			}
+		}
+		if (expiredEarly.sum() > 0) {
+			return String.format("%d calls expired before their deadline", expiredEarly.sum());
+		}
+		return wrongOutcome.sum() > 0 ? String.format("%d calls completed with an unexpected outcome", wrongOutcome.sum()) : null;
+	}
+
+	/**
+	 * Stores many more distinct keys than the maximum in a {@link StaleResponseCache}, refreshing one of them after each store, and checks that the
+	 * survivors are the refreshed key and the newest ones.
+	 *
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkCacheEvictionOrder() {
+		final var clock = new AtomicLong();
+		final var cache = new StaleResponseCache<Integer, Integer>(CACHE_MAX_ENTRIES, 1000, clock::get);
+		final var refreshedKey = -1;
+		for (var key = 0; key < CACHE_STORED_KEYS; ++key) {
+			clock.incrementAndGet();
+			cache.remember(key, key);
+			cache.remember(refreshedKey, key);
+		}
+		if (cache.size() > CACHE_MAX_ENTRIES) {
+			return String.format("%d entries exceed the maximum of %d", cache.size(), CACHE_MAX_ENTRIES);
+		}
+		if (cache.recall(refreshedKey).isEmpty()) {
+			return "the key refreshed after every store was evicted";
+		}
+		var missing = 0;
+		for (var key = CACHE_STORED_KEYS - CACHE_MAX_ENTRIES + 1; key < CACHE_STORED_KEYS; ++key) {
+			if (cache.recall(key).isEmpty()) {
+				missing += 1;
+			}
+		}
+		return missing > 0 ? String.format("%d of the newest %d keys were evicted", missing, CACHE_MAX_ENTRIES - 1) : null;
+	}
+
+	/**
+	 * Makes all the threads store distinct keys in a {@link StaleResponseCache} concurrently, and checks that its size never exceeds the maximum by
+	 * more than the number of threads.
+	 *
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkCacheBoundedSize() {
+		final var cache = new StaleResponseCache<Long, Long>(CACHE_MAX_ENTRIES, 1000, System::nanoTime);
+		final var maxSize = new AtomicLong();
+		hammer(index -> {
+			cache.remember(index, index);
+			maxSize.accumulateAndGet(cache.size(), Math::max);
+		});
+		return maxSize.get() > CACHE_MAX_ENTRIES + threads
+				? String.format("the size reached %d with a maximum of %d", maxSize.get(), CACHE_MAX_ENTRIES)
+				: null;
+	}
+
+	/**
+	 * Registers an open and a closed breaker in a {@link BreakerRegistry}, makes all the threads take snapshots concurrently, and checks that the
+	 * breakers registered with the same names in a second registry, which stands for the next incarnation of the process, get the same states even
+	 * when they are registered after some periodic snapshots. The last breaker is not registered in the second registry, and is checked to be
+	 * restored by a third one.
+	 *
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private String checkSnapshotRoundTrip() {
+		final var names = new String[]{"open", "closed", "x".repeat(40_000)};
+		final var original = new CircuitBreakerSync[names.length];
+		final Path directory;
+		try {
+			directory = Files.createTempDirectory("breakers");
+		} catch (IOException e) {
+			return "could not create the snapshot directory: " + e;
+		}
+		final var file = directory.resolve("breakers.snapshot");
+		try {
+			try (var registry = new BreakerRegistry(file, Integer.MAX_VALUE, 60_000)) {
+				for (var i = 0; i < names.length; ++i) {
+					original[i] = registry.register(names[i], new CircuitBreakerSync(0.5, 60_000, 0.25, System::nanoTime, i));
+				}
+				for (var i = 0; i < 3; ++i) {
+					original[0].update(System.nanoTime(), true);
+					original[2].update(System.nanoTime(), true);
+				}
+				original[1].update(System.nanoTime(), true);
+				final var failed = new AtomicBoolean();
+				runOnAllThreads(random -> {
+					try {
+						registry.snapshot();
+					} catch (IOException e) {
+						failed.set(true);
+					}
+				});
+				if (failed.get()) {
+					return "a concurrent snapshot failed";
+				}
+			}
+			// the second incarnation registers its breakers after some periodic snapshots, and the last one not at all.
+			try (var registry = new BreakerRegistry(file, SNAPSHOT_PERIOD_MILLIS, 60_000)) {
+				LockSupport.parkNanos(6 * SNAPSHOT_PERIOD_MILLIS * CircuitBreaker.NANOS_PER_MILLI);
+				for (var i = 0; i < names.length - 1; ++i) {
+					final var violation = checkRestored(registry, names[i], i, original[i].state());
+					if (violation != null) {
+						return violation;
+					}
+				}
+			}
+			// the third incarnation registers the last one, whose entry the second incarnation kept.
+			try (var registry = new BreakerRegistry(file, Integer.MAX_VALUE, 60_000)) {
+				return checkRestored(registry, names[names.length - 1], names.length - 1, original[names.length - 1].state());
+			}
+		} catch (IOException e) {
+			return "could not close the registry: " + e;
+		} finally {
+			try {
+				Files.deleteIfExists(file);
+				Files.deleteIfExists(directory);
+			} catch (IOException e) {
+				// a leftover temporary file is harmless.
+			}
+		}
+	}
+
+	/**
+	 * Registers a new breaker with the specified name and checks that it is restored with the expected state.
+	 *
+	 * @return a description of the violation, or null if the check passed.
+	 */
+	private static String checkRestored(BreakerRegistry registry, String name, int index, CircuitBreaker.State expected) {
+		final var actual = registry.register(name, new CircuitBreakerSync(0.5, 60_000, 0.25, System::nanoTime, index)).state();
+		// the remaining open time is shortened by the age of the snapshot, which is measured in milliseconds.
+		if (expected.isBroken != actual.isBroken || expected.tries != actual.tries
+				|| expected.failuresProportionEma != actual.failuresProportionEma
+				|| expected.isBroken && Math.abs(expected.nextTryNano - actual.nextTryNano) > 1000 * CircuitBreaker.NANOS_PER_MILLI) {
+			return String.format("the breaker number %d was restored as %s instead of %s", index, actual, expected);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of calls per second done by all the threads together, calling through a mostly closed circuit in batches of the specified
+	 * size.
+	 */
+	private double measureBatchThroughput(int batchSize) {
+		final var breaker = new CircuitBreakerSync(0.5, 32, 0.02, System::nanoTime, 1);
+		final var calls = new LongAdder();
+		final var deadline = System.nanoTime() + CHECK_DURATION_NANOS;
+		var startNano = System.nanoTime();
+		runOnAllThreads(random -> {
+			var suppliers = new ArrayList<Supplier<Boolean>>(batchSize);
+			for (var i = 0; i < batchSize; ++i) {
+				suppliers.add(() -> random.nextInt(10) != 0);
+			}
+			var localCalls = 0L;
+			while (System.nanoTime() < deadline) {
+				breaker.executeBatch(suppliers, isOk -> isOk, NO_LISTENER);
+				localCalls += batchSize;
+			}
+			calls.add(localCalls);
+		});
+		return calls.sum() * 1e9 / (System.nanoTime() - startNano);
+	}
+
+	/**
+	 * @return the number of calls per second done by all the threads together.
+	 */
+	private double measureThroughput(SubjectFactory factory) {
+		final var subject = factory.create(0.5, 32, 0.02, System::nanoTime);
+		final var calls = new LongAdder();
+		final var deadline = System.nanoTime() + CHECK_DURATION_NANOS;
+		try {
+			var startNano = System.nanoTime();
+			runOnAllThreads(random -> {
+				var localCalls = 0L;
+				while (System.nanoTime() < deadline) {
+					subject.call(() -> random.nextInt(10) != 0);
+					localCalls += 1;
+				}
+				calls.add(localCalls);
+			});
+			return calls.sum() * 1e9 / (System.nanoTime() - startNano);
+		} finally {
+			subject.close();
+		}
+	}
+
+	/**
+	 * Makes all the threads start at the same time and do {@link #CALLS_PER_THREAD} calls to the specified action each, which receives a number that
+	 * is unique across all the calls.
+	 */
+	private void hammer(CallAction action) {
+		final var nextIndex = new AtomicLong();
+		runOnAllThreads(random -> {
+			for (var i = 0; i < CALLS_PER_THREAD; ++i) {
+				action.call(nextIndex.getAndIncrement());
+			}
+		});
+	}
+
+	/**
+	 * Runs the specified task on all the threads, starting them at the same time, and waits until all of them finish.
+	 */
+	private void runOnAllThreads(Consumer<SplittableRandom> task) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			var startGate = new CountDownLatch(1);
+			var seeds = new SplittableRandom(threads);
+			var futures = new CompletableFuture<?>[threads];
+			for (var t = 0; t < threads; ++t) {
+				var random = seeds.split();
+				futures[t] = CompletableFuture.runAsync(() -> {
+					try {
+						startGate.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					task.accept(random);
+				}, executor);
+			}
+			startGate.countDown();
+			CompletableFuture.allOf(futures).join();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void joinQuietly(Thread thread) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Homogenizes the usage of the circuit breaker implementations under test.
+	 */
+	interface Subject {
+		/**
+		 * Calls the specified operation trough the circuit breaker. The operation tells if it succeeded.
+		 *
+		 * @return true if the circuit breaker admitted the call.
+		 */
+		boolean call(BooleanSupplier operation);
+
+		/**
+		 * Gives a consistent copy of the state of the circuit breaker.
+		 */
+		CircuitBreaker.State state();
+
+		/**
+		 * Gives how many failures the circuit breaker has recorded since it was created, provided it never opened. This implementation infers it from
+		 * the exponential moving average of the proportion of failures, assuming no success was recorded.
+		 */
+		default double recordedFailures(double alfa) {
+			return Math.log(1 - state().failuresProportionEma) / Math.log(1 - alfa);
+		}
+
+		/**
+		 * Releases the resources used by the circuit breaker, if any.
+		 */
+		default void close() {
+		}
+	}
+
+	@FunctionalInterface
+	interface SubjectFactory {
+		Subject create(double breakThreshold, int initialRecoverMillis, double alfa, CircuitBreaker.Chrono chrono);
+	}
+
+	@FunctionalInterface
+	private interface CallAction {
+		void call(long index);
+	}
+}
@@ -0,0 +1,86 @@
+package cb.circuitbreaker;
+
+/**
+ * How important a call is for the client, which determines how soon it is shed when the called service fails. Used by
+ * {@link CircuitBreakerSync#execute(Criticality, java.util.function.Supplier, java.util.function.Predicate, CircuitBreaker.StateChangeListener)}.
+ *
+ * Each class admits calls with a probability that decreases linearly with the moving average of the proportion of failures, from one at the start
+ * of its ramp to zero at its end. The ramps are relative to the break threshold and ordered from the least to the most important class, so the
+ * less important calls are shed first: the sheddable ones before the circuit opens, the default ones when it opens (as without criticality), and
+ * the critical ones only when the proportion of failures approaches one, even while the circuit is open. The classes admitted while the circuit is
+ * open are always admitted while it is closed, so they are never admitted less often than the default ones.
+ */
+public enum Criticality {
+	/**
+	 * Calls that must flow during a partial outage, like the checkout. Always admitted while the circuit is closed, and admitted while it is open
+	 * with a probability that decreases from one at the break threshold to zero when all the calls fail.
+	 */
+	CRITICAL(1d, Double.NaN, true),
+	/**
+	 * The calls that are not classified. Admitted as without criticality: always while the circuit is closed, and never while it is open.
+	 */
+	DEFAULT(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, false),
+	/**
+	 * Background or batch calls. Shed progressively while the circuit is still closed, from half the break threshold until it is reached, and
+	 * never admitted while it is open.
+	 */
+	SHEDDABLE(0.5d, 1d, false);
+
+	/**
+	 * The admission probabilities are represented as fractions of this unit by the credit counters.
+	 */
+	static final long CREDIT_UNIT = 1 << 16;
+	/**
+	 * The minimum probability of admitting a call while the circuit is closed, in {@link #CREDIT_UNIT}s. Lets a closed circuit that only receives
+	 * sheddable calls keep learning the state of the service.
+	 */
+	private static final long MIN_CLOSED_CREDITS = CREDIT_UNIT / 100;
+
+	/**
+	 * The start of the ramp, as a fraction of the break threshold.
+	 */
+	private final double rampStart;
+	/**
+	 * The end of the ramp, as a fraction of the break threshold. NaN means that the ramp ends when all the calls fail.
+	 */
+	private final double rampEnd;
+	/**
+	 * Whether calls of this class may be admitted while the circuit is open.
+	 */
+	private final boolean isAdmittedWhileOpen;
+
+	Criticality(final double rampStart, final double rampEnd, final boolean isAdmittedWhileOpen) {
+		this.rampStart = rampStart;
+		this.rampEnd = rampEnd;
+		this.isAdmittedWhileOpen = isAdmittedWhileOpen;
+	}
+
+	/**
+	 * Gives the probability of admitting a call of this class, in {@link #CREDIT_UNIT}s.
+	 *
+	 * @param failuresProportion the moving average of the proportion of failures.
+	 * @param breakThreshold     the break threshold of the circuit breaker.
+	 * @param isOpen             whether the circuit breaker would reject a call without criticality.
+	 */
+	long admissionCredits(final double failuresProportion, final double breakThreshold, final boolean isOpen) {
+		if (isOpen && !isAdmittedWhileOpen) {
+			return 0;
+		}
+		if (!isOpen && isAdmittedWhileOpen) {
+			// the ramp would shed calls that the default class admits while the proportion of failures is over the break threshold but the
+			// circuit is closed, as happens below the minimum weight of a time decayed average or after a restore.
+			return CREDIT_UNIT;
+		}
+		final var start = rampStart * breakThreshold;
+		final var end = Double.isNaN(rampEnd) ? 1d : rampEnd * breakThreshold;
+		final long credits;
+		if (failuresProportion <= start) {
+			credits = CREDIT_UNIT;
+		} else if (failuresProportion >= end) {
+			credits = 0;
+		} else {
+			credits = (long) (CREDIT_UNIT * (end - failuresProportion) / (end - start));
+		}
+		return isOpen ? credits : Math.max(MIN_CLOSED_CREDITS, credits);
+	}
+}
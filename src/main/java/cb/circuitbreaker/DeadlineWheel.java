@@ -0,0 +1,197 @@
+package cb.circuitbreaker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * A hashed timer wheel that enforces deadlines on {@link CompletableFuture}s. A single thread advances the wheel every tick and completes with a
+ * {@link TimeoutException} (or cancels) the futures whose deadline has passed and are still incomplete. Scheduling a deadline costs a queue
+ * insertion, instead of a task in a {@link ScheduledExecutorService}, so a single instance can be shared by all the calls of many circuit breakers.
+ *
+ * Deadlines are enforced with a precision of one tick. When a future completes before its deadline, its {@link Deadline} releases the reference
+ * to it, so the completed future and its result can be garbage collected right away; the small {@link Deadline} itself stays in its bucket until
+ * the bucket is visited, because the buckets are touched by the ticker thread only and removing it earlier would require synchronizing them.
+ */
+public class DeadlineWheel implements AutoCloseable {
+
+	/**
+	 * The duration of a tick.
+	 */
+	private final long tickNanos;
+	/**
+	 * The chronometer used to measure the deadlines. Must be the same used by the circuit breakers that schedule deadlines on this wheel.
+	 */
+	private final CircuitBreaker.Chrono chrono;
+	/**
+	 * The deadlines scheduled since the last tick. Producers only touch this queue; the buckets are touched by the ticker thread only.
+	 */
+	private final ConcurrentLinkedQueue<Deadline<?>> incoming = new ConcurrentLinkedQueue<>();
+	private final List<ArrayDeque<Deadline<?>>> buckets;
+	private final ScheduledExecutorService ticker;
+	/**
+	 * The instant of the start of the tick that will be processed next.
+	 */
+	private long nextTickNano;
+	/**
+	 * The number of the tick that will be processed next.
+	 */
+	private long nextTick;
+
+	private final LongAdder expirations = new LongAdder();
+
+	/**
+	 * Construct an instance and starts its ticker thread.
+	 *
+	 * @param tickMillis the duration of a tick. Determines the precision of the deadlines.
+	 * @param wheelSize  the number of buckets. Deadlines farther than {@code tickMillis * wheelSize} are visited more than once before expiring.
+	 * @param chrono     the chronometer used to measure the deadlines.
+	 */
+	public DeadlineWheel(final int tickMillis, final int wheelSize, final CircuitBreaker.Chrono chrono) {
+		this.tickNanos = tickMillis * CircuitBreaker.NANOS_PER_MILLI;
+		this.chrono = chrono;
+		this.buckets = new ArrayList<>(wheelSize);
+		for (var i = 0; i < wheelSize; ++i) {
+			buckets.add(new ArrayDeque<>());
+		}
+		this.nextTickNano = chrono.nanoTime();
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "deadlineWheel");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules a deadline for the specified future. If the future is not completed when the deadline passes, it is completed exceptionally with a
+	 * {@link TimeoutException}, or cancelled if {@code cancel} is true.
+	 *
+	 * @param future        the future to watch.
+	 * @param deadlineNano  the instant, measured with the {@link CircuitBreaker.Chrono} of this wheel, after which the future is expired.
+	 * @param cancel        whether the expired future is cancelled instead of completed with a {@link TimeoutException}.
+	 */
+	public void schedule(final CompletableFuture<?> future, final long deadlineNano, final boolean cancel) {
+		schedule(new Deadline<>(future, deadlineNano, cancel));
+	}
+
+	/**
+	 * Schedules the specified deadline. Use a subclass of {@link Deadline} to act when the future completes without allocating another callback.
+	 */
+	public <T> void schedule(final Deadline<T> deadline) {
+		final var future = deadline.future;
+		incoming.add(deadline);
+		future.whenComplete(deadline);
+	}
+
+	/**
+	 * Processes all the ticks elapsed since the last invocation. Called by the ticker thread only.
+	 */
+	private void advance() {
+		final var now = chrono.nanoTime();
+		transferIncoming();
+		while (nextTickNano <= now) {
+			var bucket = buckets.get((int) (nextTick % buckets.size()));
+			for (var remaining = bucket.size(); remaining > 0; --remaining) {
+				var deadline = bucket.poll();
+				var future = deadline.future;
+				if (future == null || future.isDone()) {
+					continue;
+				}
+				if (deadline.deadlineNano <= now) {
+					expire(future, deadline.cancel);
+				} else {
+					bucket.add(deadline);
+				}
+			}
+			nextTick += 1;
+			nextTickNano += tickNanos;
+		}
+	}
+
+	/**
+	 * Moves the recently scheduled deadlines to the bucket of the first tick that starts after they expire. The ones that are already expired are
+	 * put in the bucket that will be processed next.
+	 */
+	private void transferIncoming() {
+		Deadline<?> deadline;
+		while ((deadline = incoming.poll()) != null) {
+			var ticksAhead = Math.max(0, (deadline.deadlineNano - nextTickNano + tickNanos - 1) / tickNanos);
+			buckets.get((int) ((nextTick + ticksAhead) % buckets.size())).add(deadline);
+		}
+	}
+
+	private void expire(final CompletableFuture<?> future, final boolean cancel) {
+		final boolean expired;
+		if (cancel) {
+			expired = future.cancel(true);
+		} else {
+			expired = future.completeExceptionally(new TimeoutException("The deadline has passed"));
+		}
+		if (expired) {
+			expirations.increment();
+		}
+	}
+
+	/**
+	 * The number of futures that were expired by this wheel.
+	 */
+	public long expirations() {
+		return expirations.sum();
+	}
+
+	/**
+	 * Stops the ticker thread. The pending deadlines are not enforced anymore.
+	 */
+	@Override
+	public void close() {
+		ticker.shutdownNow();
+	}
+
+	/**
+	 * The deadline of a future, which is also the callback invoked when the future completes. A single instance per watched future is both the entry
+	 * of the wheel and the completion callback; the only other allocation is the dependent stage that {@link CompletableFuture#whenComplete}
+	 * inevitably creates.
+	 *
+	 * @param <T> the type of the result of the future.
+	 */
+	public static class Deadline<T> implements BiConsumer<T, Throwable> {
+		/**
+		 * The watched future. Cleared when it completes, so that the wheel does not retain it until the bucket is visited.
+		 */
+		private volatile CompletableFuture<? extends T> future;
+		private final long deadlineNano;
+		private final boolean cancel;
+
+		/**
+		 * @param future       the future to watch.
+		 * @param deadlineNano the instant, measured with the {@link CircuitBreaker.Chrono} of the wheel, after which the future is expired.
+		 * @param cancel       whether the expired future is cancelled instead of completed with a {@link TimeoutException}.
+		 */
+		public Deadline(final CompletableFuture<? extends T> future, final long deadlineNano, final boolean cancel) {
+			this.future = future;
+			this.deadlineNano = deadlineNano;
+			this.cancel = cancel;
+		}
+
+		@Override
+		public final void accept(final T result, final Throwable failure) {
+			future = null;
+			onCompletion(result, failure);
+		}
+
+		/**
+		 * Called when the future completes, normally, exceptionally, or expired by the wheel. Does nothing by default.
+		 */
+		protected void onCompletion(final T result, final Throwable failure) {
+		}
+	}
+}
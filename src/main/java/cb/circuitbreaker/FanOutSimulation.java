@@ -0,0 +1,552 @@
+package cb.circuitbreaker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static cb.circuitbreaker.Printer.print;
+
+/**
+ * Simulates a graph of services that call each other trough circuit breakers, and compares how well each circuit breaker family contains the
+ * cascading failures caused by a slow or failing service deep in the graph.
+ *
+ * Every node of the graph is a service with a concurrency limit and a bounded queue, like a bounded thread pool: a call that arrives when all the
+ * slots are busy waits in the queue, or is rejected immediately if the queue is full. A service does some local work, whose duration and outcome
+ * follow its own scenario, then calls all its dependencies in parallel, and responds when all of them responded. It responds successfully only if
+ * its local work and all its required dependencies succeeded; the optional dependencies may fail without consequence. The slot is held until the
+ * service responds, including the time it waits for its dependencies; so a slow dependency makes its callers hold their slots longer, which fills
+ * their queues and delays their own callers, up to the root. Every edge has its own timeout and its own circuit breaker instance.
+ *
+ * The simulation is driven by discrete events in virtual time, so the circuit breakers must accept an injected {@link CircuitBreaker.Chrono}; that
+ * excludes the resilience4j and MeLi ones, which read the system clock. The whole simulation of each family runs in a single thread, and the
+ * families are simulated in parallel. The arrivals, durations and outcomes are derived from the seed and the request, so all the families face
+ * exactly the same traffic and failures.
+ *
+ * For each family, the end to end success rate, the latency percentiles and the time the root service had all its slots busy are reported.
+ */
+public class FanOutSimulation {
+
+	private static final long NANOS_PER_MILLI = CircuitBreaker.NANOS_PER_MILLI;
+	private static final int DURATION_MILLIS = 80_000;
+	private static final double DEFAULT_REQUESTS_PER_SECOND = 1000d;
+	/**
+	 * How many optional dependencies the fan-out service of the default graph has. Each of them has a dependency of its own.
+	 */
+	private static final int FAN_OUT_WIDTH = 10;
+	/**
+	 * How many of the rankers, and how many of the stores, of the default graph run on the same host.
+	 */
+	private static final int ENDPOINTS_PER_HOST = 5;
+	/**
+	 * Odd constants used to derive an independent random number for each request, node and purpose from the seed.
+	 */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static final long MIX_GAMMA = 0xbf58476d1ce4e5b9L;
+	private static final CircuitBreaker.StateChangeListener NO_LISTENER = new CircuitBreaker.StateChangeListener() {
+		@Override
+		public void brokenStateChanged(boolean isBroken) {
+		}
+
+		@Override
+		public void failuresProportionChanged(double newValue) {
+		}
+
+		@Override
+		public void triesChanged(int newValue) {
+		}
+	};
+
+	private final double requestsPerSecond;
+	private final long seed;
+	private final Map<String, BreakerFamily> families = new LinkedHashMap<>();
+
+	/**
+	 * @param requestsPerSecond the mean rate at which the requests arrive to the root service. The arrivals are a Poisson process.
+	 * @param seed              the seed from which the arrivals, durations and outcomes of the whole simulation are derived.
+	 */
+	public FanOutSimulation(double requestsPerSecond, long seed) {
+		this.requestsPerSecond = requestsPerSecond;
+		this.seed = seed;
+		families.put("alwaysClosed", (chrono, seeds) -> edge -> CompletableFuture::new);
+		families.put("sync", (chrono, seeds) -> edge -> adapt(new CircuitBreakerSync(0.5, 128, 0.05, chrono, seeds.nextLong())));
+		families.put("halfLife", (chrono, seeds) -> edge -> adapt(CircuitBreakerSync.withHalfLife(0.5, 128, 64, 10, chrono, seeds.nextLong())));
+		families.put("window", (chrono, seeds) -> edge -> adapt(new CircuitBreakerWindow(0.5, 128, 100, 10, 8, chrono, seeds.nextLong()), chrono));
+		families.put("hierarchy", (chrono, seeds) -> {
+			// the edges that call a service on the same host share a parent breaker.
+			var parents = new HashMap<String, CircuitBreakerWindow>();
+			return edge -> {
+				var parent = parents.computeIfAbsent(edge.target.host, host -> new CircuitBreakerWindow(0.5, 128, 100, 10, 8, chrono, seeds.nextLong()));
+				return adapt(CircuitBreakerSync.withParent(parent, NO_LISTENER, 0.5, 128, 0.05, chrono, seeds.nextLong()));
+			};
+		});
+	}
+
+	public static void main(String[] args) {
+		var requestsPerSecond = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_REQUESTS_PER_SECOND;
+		var seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		new FanOutSimulation(requestsPerSecond, seed).run();
+		Printer.shutdown();
+	}
+
+	/**
+	 * Simulates the graph once per circuit breaker family, in parallel, and shows the results.
+	 */
+	void run() {
+		print("Simulating %d virtual seconds of %.0f requests per second trough a graph of %d services, once per circuit breaker family. Seed: %d%n",
+				DURATION_MILLIS / 1000, requestsPerSecond, buildGraph().size(), seed);
+		var executor = Executors.newFixedThreadPool(Math.min(families.size(), Runtime.getRuntime().availableProcessors()));
+		try {
+			var runs = families.entrySet().stream()
+					.map(e -> CompletableFuture.supplyAsync(() -> new Run(e.getKey(), e.getValue()).simulate(), executor))
+					.collect(Collectors.toList());
+			print("%14s%10s%10s%10s%10s%10s%15s%15s%15s%n", "family", "success", "p50", "p99", "p99.9", "max", "rootSaturated", "rootRejected",
+					"shortCircuits");
+			for (var run : runs) {
+				print("%s%n", run.join());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Builds the default graph: the root calls a required service that depends on a service that becomes slow for a while, and an optional service
+	 * that fans out to {@link #FAN_OUT_WIDTH} optional services, each with a dependency of its own, one of which suffers an outage. The rankers
+	 * and the stores are endpoints grouped in hosts of {@link #ENDPOINTS_PER_HOST}; every other service runs on its own host.
+	 *
+	 * <pre>
+	 * root ─┬─ checkout ── inventory (40 times slower from 20s to 40s, but still accepting)
+	 *       └─ recommendations ─┬─ ranker0 ── store0      (rankerHost0, storeHost0)
+	 *                           ├─ ...
+	 *                           └─ ranker9 ── store9      (rankerHost1, storeHost1; store3 fails from 50s to 60s)
+	 * </pre>
+	 *
+	 * @return all the nodes of the graph, the root first.
+	 */
+	private static List<Node> buildGraph() {
+		var nodes = new ArrayList<Node>();
+		var root = new Node("root", nodes.size(), 64, 512, 1, 0.001);
+		nodes.add(root);
+		var checkout = new Node("checkout", nodes.size(), 32, 512, 2, 0.01);
+		nodes.add(checkout);
+		var inventory = new Node("inventory", nodes.size(), 256, 256, 5, 0.01).slowDuring(20_000, 40_000, 40);
+		nodes.add(inventory);
+		var recommendations = new Node("recommendations", nodes.size(), 32, 512, 2, 0.01);
+		nodes.add(recommendations);
+		root.calls(checkout, 100, true).calls(recommendations, 100, false);
+		checkout.calls(inventory, 50, true);
+		for (var i = 0; i < FAN_OUT_WIDTH; ++i) {
+			var ranker = new Node("ranker" + i, nodes.size(), 16, 256, 1, 0.01).onHost("rankerHost" + i / ENDPOINTS_PER_HOST);
+			nodes.add(ranker);
+			var store = new Node("store" + i, nodes.size(), 16, 256, 2, 0.01).onHost("storeHost" + i / ENDPOINTS_PER_HOST);
+			if (i == 3) {
+				store.failDuring(50_000, 60_000);
+			}
+			nodes.add(store);
+			recommendations.calls(ranker, 50, false);
+			ranker.calls(store, 30, true);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Gives a uniformly distributed number between zero and one, determined by the seed, the request, the node, and the purpose of the number.
+	 */
+	private double uniform(final long requestId, final int nodeIndex, final int purpose) {
+		var z = seed + requestId * GOLDEN_GAMMA + (nodeIndex * 2L + purpose) * MIX_GAMMA;
+		z = (z ^ (z >>> 30)) * MIX_GAMMA;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		z = z ^ (z >>> 31);
+		return (z >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Adapts a {@link CircuitBreakerSync} to the asynchronous calls of the simulation, using its {@link CircuitBreakerSync#executeAsync}.
+	 */
+	private static EdgeBreaker adapt(final CircuitBreakerSync breaker) {
+		return () -> {
+			var call = new CompletableFuture<Boolean>();
+			return breaker.executeAsync(() -> call, isOk -> isOk, NO_LISTENER).isPresent() ? call : null;
+		};
+	}
+
+	/**
+	 * Adapts a {@link CircuitBreakerWindow} to the asynchronous calls of the simulation.
+	 */
+	private static EdgeBreaker adapt(final CircuitBreakerWindow breaker, final CircuitBreaker.Chrono chrono) {
+		return () -> {
+			final var now = chrono.nanoTime();
+			if (breaker.rejects(now)) {
+				return null;
+			}
+			var call = new CompletableFuture<Boolean>();
+			call.thenAccept(isOk -> breaker.record(now, !isOk, NO_LISTENER));
+			return call;
+		};
+	}
+
+	/**
+	 * The simulation of the graph with the circuit breakers of one family. Not thread safe: all the events are processed by the thread that calls
+	 * {@link #simulate()}.
+	 */
+	private final class Run {
+		private final String familyName;
+		private final List<Node> nodes = buildGraph();
+		private final Map<Edge, EdgeBreaker> breakers = new HashMap<>();
+		private final PriorityQueue<Event> events = new PriorityQueue<>();
+		/**
+		 * The virtual time, in nanoseconds since the start of the simulation.
+		 */
+		private long now;
+		private long nextEventSequence;
+
+		private long requests;
+		private long successes;
+		private long shortCircuits;
+		private long[] latencies = new long[1024];
+
+		Run(final String familyName, final BreakerFamily family) {
+			this.familyName = familyName;
+			var edgeBreakers = family.newRun(() -> now, new SplittableRandom(seed));
+			for (var node : nodes) {
+				for (var edge : node.edges) {
+					breakers.put(edge, edgeBreakers.forEdge(edge));
+				}
+			}
+		}
+
+		/**
+		 * Processes all the events and gives the report line of this run.
+		 */
+		String simulate() {
+			var arrivals = new SplittableRandom(seed);
+			var endNanos = DURATION_MILLIS * NANOS_PER_MILLI;
+			var meanInterArrivalNanos = 1e9 / requestsPerSecond;
+			for (var arrival = 0L; arrival < endNanos; arrival += (long) (-meanInterArrivalNanos * Math.log(1d - arrivals.nextDouble())) + 1) {
+				final var requestId = requests++;
+				final var start = arrival;
+				schedule(arrival, () -> call(nodes.get(0), requestId, isOk -> {
+					if (isOk) {
+						successes += 1;
+					}
+					if (requestId >= latencies.length) {
+						latencies = Arrays.copyOf(latencies, latencies.length * 2);
+					}
+					latencies[(int) requestId] = now - start;
+				}));
+				// process the events up to the next arrival, to keep the queue short.
+				processUntil(arrival);
+			}
+			processUntil(Long.MAX_VALUE);
+			return report();
+		}
+
+		private void processUntil(final long time) {
+			while (!events.isEmpty() && events.peek().time <= time) {
+				var event = events.poll();
+				now = event.time;
+				event.action.run();
+			}
+		}
+
+		private void schedule(final long time, final Runnable action) {
+			events.add(new Event(time, nextEventSequence++, action));
+		}
+
+		/**
+		 * Simulates the arrival of a call to the specified node now. The `respond` consumer is called with the outcome when the node responds, or
+		 * immediately if the node rejects the call.
+		 */
+		private void call(final Node node, final long requestId, final Consumer<Boolean> respond) {
+			if (!node.admit(now, () -> work(node, requestId, respond))) {
+				respond.accept(false);
+			}
+		}
+
+		/**
+		 * Simulates the processing of a call by the specified node, starting now: the local work followed by the parallel calls to the dependencies.
+		 */
+		private void work(final Node node, final long requestId, final Consumer<Boolean> respond) {
+			final var localNanos = node.serviceNanos(now, uniform(requestId, node.index, 0));
+			final var isLocalOk = uniform(requestId, node.index, 1) >= node.failureProbability(now);
+			schedule(now + localNanos, () -> {
+				if (!isLocalOk || node.edges.isEmpty()) {
+					node.release(now);
+					respond.accept(isLocalOk);
+					return;
+				}
+				final var pending = new int[]{node.edges.size()};
+				final var isOk = new boolean[]{true};
+				for (var edge : node.edges) {
+					callTrough(edge, requestId, isEdgeOk -> {
+						if (edge.isRequired && !isEdgeOk) {
+							isOk[0] = false;
+						}
+						pending[0] -= 1;
+						if (pending[0] == 0) {
+							node.release(now);
+							respond.accept(isOk[0]);
+						}
+					});
+				}
+			});
+		}
+
+		/**
+		 * Simulates a call trough the specified edge now: the breaker of the edge decides if the call is done, and the outcome is given to `respond`
+		 * when the target responds or the timeout of the edge expires, whatever happens first. The target keeps working after the timeout.
+		 */
+		private void callTrough(final Edge edge, final long requestId, final Consumer<Boolean> respond) {
+			final var call = breakers.get(edge).admit();
+			if (call == null) {
+				shortCircuits += 1;
+				respond.accept(false);
+				return;
+			}
+			final var isDone = new boolean[1];
+			final Consumer<Boolean> respondOnce = isOk -> {
+				if (!isDone[0]) {
+					isDone[0] = true;
+					call.complete(isOk);
+					respond.accept(isOk);
+				}
+			};
+			schedule(now + edge.timeoutNanos, () -> respondOnce.accept(false));
+			call(edge.target, requestId, respondOnce);
+		}
+
+		private String report() {
+			var root = nodes.get(0);
+			var sorted = Arrays.copyOf(latencies, (int) requests);
+			Arrays.sort(sorted);
+			return String.format("%14s:%8.2f%%,%7.1fms,%7.1fms,%7.1fms,%7.1fms,%12.0fms,%14d,%14d",
+					familyName,
+					successes * 100.0 / requests,
+					percentile(sorted, 0.5),
+					percentile(sorted, 0.99),
+					percentile(sorted, 0.999),
+					sorted[sorted.length - 1] * 1e-6,
+					root.saturatedNanos * 1e-6,
+					root.rejections,
+					shortCircuits
+			);
+		}
+	}
+
+	private static double percentile(final long[] sorted, final double quantile) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] * 1e-6;
+	}
+
+	/**
+	 * A service of the graph and its per run state.
+	 */
+	private static final class Node {
+		final String name;
+		final int index;
+		final int concurrencyLimit;
+		final int queueLimit;
+		final long meanServiceNanos;
+		final double failureProbability;
+		final List<Edge> edges = new ArrayList<>();
+		/**
+		 * The name of the host where this service runs. The services of the same host share the parent breaker of the hierarchy family.
+		 */
+		String host;
+
+		private long slowStartNanos = -1;
+		private long slowEndNanos = -1;
+		private double slowFactor = 1d;
+		private long outageStartNanos = -1;
+		private long outageEndNanos = -1;
+
+		private int inFlight;
+		private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+		private long saturatedSinceNanos;
+		long saturatedNanos;
+		long rejections;
+
+		/**
+		 * @param concurrencyLimit   how many calls the service processes at the same time, like the threads of a bounded pool.
+		 * @param queueLimit         how many calls wait for a slot while all are busy. The calls that arrive while the queue is full are rejected.
+		 * @param meanServiceMillis  the mean duration of the local work. The durations are exponentially distributed.
+		 * @param failureProbability the probability that the local work fails, outside the outages.
+		 */
+		Node(
+				final String name,
+				final int index,
+				final int concurrencyLimit,
+				final int queueLimit,
+				final double meanServiceMillis,
+				final double failureProbability
+		) {
+			this.name = name;
+			this.index = index;
+			this.concurrencyLimit = concurrencyLimit;
+			this.queueLimit = queueLimit;
+			this.meanServiceNanos = (long) (meanServiceMillis * NANOS_PER_MILLI);
+			this.failureProbability = failureProbability;
+			this.host = name;
+		}
+
+		/**
+		 * Places this service on the specified host, shared with other services. By default every service runs on its own host.
+		 */
+		Node onHost(final String host) {
+			this.host = host;
+			return this;
+		}
+
+		Node calls(final Node target, final int timeoutMillis, final boolean isRequired) {
+			edges.add(new Edge(target, timeoutMillis * NANOS_PER_MILLI, isRequired));
+			return this;
+		}
+
+		/**
+		 * Makes the local work of this service `factor` times slower between the specified instants.
+		 */
+		Node slowDuring(final int startMillis, final int endMillis, final double factor) {
+			slowStartNanos = startMillis * NANOS_PER_MILLI;
+			slowEndNanos = endMillis * NANOS_PER_MILLI;
+			slowFactor = factor;
+			return this;
+		}
+
+		/**
+		 * Makes the local work of this service always fail between the specified instants.
+		 */
+		Node failDuring(final int startMillis, final int endMillis) {
+			outageStartNanos = startMillis * NANOS_PER_MILLI;
+			outageEndNanos = endMillis * NANOS_PER_MILLI;
+			return this;
+		}
+
+		long serviceNanos(final long now, final double uniform) {
+			var factor = now >= slowStartNanos && now < slowEndNanos ? slowFactor : 1d;
+			return (long) (-meanServiceNanos * factor * Math.log(1d - uniform));
+		}
+
+		double failureProbability(final long now) {
+			return now >= outageStartNanos && now < outageEndNanos ? 1d : failureProbability;
+		}
+
+		/**
+		 * Starts the specified work now if a slot is free, or queues it until one is released if the queue is not full.
+		 *
+		 * @return false if the call was rejected because all the slots were busy and the queue was full.
+		 */
+		boolean admit(final long now, final Runnable work) {
+			if (inFlight < concurrencyLimit) {
+				inFlight += 1;
+				if (inFlight == concurrencyLimit) {
+					saturatedSinceNanos = now;
+				}
+				work.run();
+				return true;
+			}
+			if (waiting.size() < queueLimit) {
+				waiting.add(work);
+				return true;
+			}
+			rejections += 1;
+			return false;
+		}
+
+		/**
+		 * Releases the slot of a call that finished now, handing it over to the oldest queued call if any.
+		 */
+		void release(final long now) {
+			var next = waiting.poll();
+			if (next != null) {
+				next.run();
+				return;
+			}
+			if (inFlight == concurrencyLimit) {
+				saturatedNanos += now - saturatedSinceNanos;
+			}
+			inFlight -= 1;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * A dependency between two services.
+	 */
+	private static final class Edge {
+		final Node target;
+		final long timeoutNanos;
+		/**
+		 * Whether the caller fails when this dependency fails.
+		 */
+		final boolean isRequired;
+
+		Edge(final Node target, final long timeoutNanos, final boolean isRequired) {
+			this.target = target;
+			this.timeoutNanos = timeoutNanos;
+			this.isRequired = isRequired;
+		}
+	}
+
+	private static final class Event implements Comparable<Event> {
+		final long time;
+		/**
+		 * Breaks the ties between events of the same instant, so that they are processed in the order they were scheduled.
+		 */
+		final long sequence;
+		final Runnable action;
+
+		Event(final long time, final long sequence, final Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(final Event other) {
+			return time != other.time ? Long.compare(time, other.time) : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * The circuit breaker of an edge, adapted to the asynchronous calls of the simulation.
+	 */
+	@FunctionalInterface
+	private interface EdgeBreaker {
+		/**
+		 * Decides if a call starting now is done.
+		 *
+		 * @return the future that the simulation completes with the outcome of the call, or null if the call is rejected.
+		 */
+		CompletableFuture<Boolean> admit();
+	}
+
+	/**
+	 * Creates the circuit breakers of all the edges of a run.
+	 */
+	@FunctionalInterface
+	private interface BreakerFamily {
+		/**
+		 * @param chrono the virtual clock of the run.
+		 * @param seeds  the generator of the seeds of the breakers.
+		 */
+		EdgeBreakers newRun(CircuitBreaker.Chrono chrono, SplittableRandom seeds);
+	}
+
+	@FunctionalInterface
+	private interface EdgeBreakers {
+		EdgeBreaker forEdge(Edge edge);
+	}
+}
@@ -0,0 +1,149 @@
+package cb.circuitbreaker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static cb.circuitbreaker.Printer.print;
+
+/**
+ * Runs the same comparison many times, each with a different seed, and reports the mean and the 95% confidence interval of every statistic of each
+ * circuit breaker instance. Useful to judge if the difference between two configurations is significant or just noise.
+ *
+ * Each run uses its own {@link Tester} and its own circuit breaker instances, so the runs are independent and can be executed in parallel. But the
+ * runs are timed with the wall clock, so concurrent runs compete for the processors and distort the latencies, the load of the simulated service,
+ * and the timing sensitive behaviour of the circuit breakers. Run them one after the other unless the comparison is not timing sensitive.
+ */
+public class MultiSeedTester {
+
+	/**
+	 * The 0.975 quantiles of the Student's t distribution for 1 to 30 degrees of freedom. Above that the normal distribution quantile is used.
+	 */
+	private static final double[] T_975 = {
+			12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+			2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+			2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+	};
+	private static final double Z_975 = 1.960;
+
+	private final int parallelism;
+	private final double requestsPerSecond;
+	private final Tester.Scenario scenario;
+	private final long firstSeed;
+	private final int numberOfSeeds;
+	private final int concurrentRuns;
+
+	/**
+	 * @param parallelism       specifies how many request are processed concurrently by each circuit breaker under test. See {@link Tester}.
+	 * @param requestsPerSecond the rate at which the requests are generated in each run.
+	 * @param scenario          the scenario of every run.
+	 * @param firstSeed         the seed of the first run. The seed of the run number i is {@code firstSeed + i}.
+	 * @param numberOfSeeds     how many runs are done.
+	 * @param concurrentRuns    how many runs are executed at the same time. Should be one for timing sensitive comparisons.
+	 */
+	public MultiSeedTester(int parallelism, double requestsPerSecond, Tester.Scenario scenario, long firstSeed, int numberOfSeeds, int concurrentRuns) {
+		this.parallelism = parallelism;
+		this.requestsPerSecond = requestsPerSecond;
+		this.scenario = scenario;
+		this.firstSeed = firstSeed;
+		this.numberOfSeeds = numberOfSeeds;
+		this.concurrentRuns = concurrentRuns;
+	}
+
+	/**
+	 * Runs the test once per seed and shows the results.
+	 *
+	 * @param facadesBuilder builds the {@link Tester.Facade} instances of a run. It is called once per run and should create new circuit breaker
+	 *                       instances each time, deriving their seeds from {@link Tester#seed}.
+	 */
+	void run(final Function<Tester, List<Tester.Facade>> facadesBuilder) {
+		print("Collecting statistics data of %d runs, %d at a time. That takes %d seconds. Pleas wait.%n",
+				numberOfSeeds, concurrentRuns, ((numberOfSeeds + concurrentRuns - 1) / concurrentRuns) * Tester.NUMBER_OF_TICKS / 1000);
+		if (concurrentRuns > 1) {
+			print("Warning: the concurrent runs compete for the processors, which distorts the latencies and the timing sensitive behaviour of the "
+					+ "circuit breakers. Run them one at a time for such comparisons.%n");
+		}
+		var executor = Executors.newFixedThreadPool(concurrentRuns);
+		try {
+			var runs = LongStream.range(firstSeed, firstSeed + numberOfSeeds)
+					.mapToObj(seed -> CompletableFuture.supplyAsync(
+							() -> {
+								var tester = new Tester(parallelism, seed, requestsPerSecond, scenario);
+								return tester.collect(facadesBuilder.apply(tester));
+							},
+							executor
+					))
+					.collect(Collectors.toList());
+
+			// For each circuit breaker instance, the columns of every run.
+			var samplesByName = new TreeMap<String, List<double[]>>();
+			for (var run : runs) {
+				for (Map.Entry<String, Tester.Accum> e : run.join().entrySet()) {
+					samplesByName.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(e.getValue().columns());
+				}
+			}
+			report(samplesByName);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void report(final TreeMap<String, List<double[]>> samplesByName) {
+		var header = new StringBuilder(String.format("%20s", "name"));
+		for (var columnName : Tester.Accum.COLUMN_NAMES) {
+			header.append(String.format("%18s", columnName));
+		}
+		var lines = samplesByName.entrySet().stream()
+				.map(e -> {
+					var line = new StringBuilder(String.format("%20s:", e.getKey()));
+					for (var column = 0; column < Tester.Accum.COLUMN_NAMES.length; ++column) {
+						var interval = confidenceInterval(e.getValue(), column);
+						line.append(String.format(" %8.2f ±%6.2f,", interval[0], interval[1]));
+					}
+					return line.toString();
+				})
+				.collect(Collectors.joining("\n"));
+		print("Report of %d runs with seeds %d to %d (mean ± half width of the 95%% confidence interval)%n%s%n%s%n",
+				numberOfSeeds, firstSeed, firstSeed + numberOfSeeds - 1, header, lines);
+	}
+
+	/**
+	 * Calculates the mean and the half width of the 95% confidence interval of the specified column. The NaN values, which appear when a proportion
+	 * has no samples, are ignored.
+	 *
+	 * @return an array whose first element is the mean and the second is the half width.
+	 */
+	static double[] confidenceInterval(final List<double[]> samples, final int column) {
+		var n = 0;
+		var sum = 0d;
+		for (var sample : samples) {
+			if (!Double.isNaN(sample[column])) {
+				n += 1;
+				sum += sample[column];
+			}
+		}
+		if (n == 0) {
+			return new double[]{Double.NaN, Double.NaN};
+		}
+		var mean = sum / n;
+		if (n == 1) {
+			return new double[]{mean, Double.NaN};
+		}
+		var squaresSum = 0d;
+		for (var sample : samples) {
+			if (!Double.isNaN(sample[column])) {
+				var deviation = sample[column] - mean;
+				squaresSum += deviation * deviation;
+			}
+		}
+		var standardError = Math.sqrt(squaresSum / (n - 1) / n);
+		var t = n - 1 <= T_975.length ? T_975[n - 2] : Z_975;
+		return new double[]{mean, t * standardError};
+	}
+}
@@ -0,0 +1,112 @@
+package cb.circuitbreaker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits the retries done through a circuit breaker to a fraction of its successful calls. Intended to be shared by all the
+ * clients of the same circuit breaker instance.
+ *
+ * Every successful call deposits {@code retryRatio} tokens in the bucket, and every retry withdraws one. While the circuit breaker is open or
+ * half-open the bucket is emptied and no retry is allowed, so that retries don't multiply the load of a service that is already failing.
+ *
+ * This class is lock free: the amount of tokens is kept in a single {@link AtomicLong} as a fixed point number.
+ */
+public class RetryBudget {
+
+	/**
+	 * The amount of units that represent a token.
+	 */
+	private static final long UNITS_PER_TOKEN = 1000;
+
+	/**
+	 * The circuit breaker whose state determines if retries are allowed. Null for an unlimited budget.
+	 */
+	private final CircuitBreaker breaker;
+	/**
+	 * The amount of units deposited by each successful call.
+	 */
+	private final long unitsPerSuccess;
+	/**
+	 * The capacity of the bucket measured in units.
+	 */
+	private final long maxUnits;
+	/**
+	 * The current amount of units in the bucket.
+	 */
+	private final AtomicLong units = new AtomicLong();
+
+	/**
+	 * Construct an instance specifying all the parameters. The bucket starts empty.
+	 *
+	 * @param breaker    the circuit breaker whose state determines if retries are allowed.
+	 * @param retryRatio how many retries are allowed per successful call. For example, 0.1 allows one retry every ten successful calls.
+	 * @param maxTokens  the maximum amount of retries that may be accumulated.
+	 */
+	public RetryBudget(final CircuitBreaker breaker, final double retryRatio, final int maxTokens) {
+		this.breaker = breaker;
+		this.unitsPerSuccess = Math.round(retryRatio * UNITS_PER_TOKEN);
+		this.maxUnits = maxTokens * UNITS_PER_TOKEN;
+	}
+
+	private RetryBudget() {
+		this.breaker = null;
+		this.unitsPerSuccess = 0;
+		this.maxUnits = 0;
+	}
+
+	/**
+	 * Creates a budget that allows all the retries regardless of the state of any circuit breaker. Useful to measure the effect of not having a
+	 * budget.
+	 */
+	public static RetryBudget unlimited() {
+		return new RetryBudget();
+	}
+
+	/**
+	 * Should be called after every successful call, whether it was a first attempt or a retry.
+	 */
+	public void onSuccess() {
+		if (breaker == null) {
+			return;
+		}
+		long current;
+		do {
+			current = units.get();
+			if (current >= maxUnits) {
+				return;
+			}
+		} while (!units.compareAndSet(current, Math.min(current + unitsPerSuccess, maxUnits)));
+	}
+
+	/**
+	 * Withdraws a token if there is one available and the circuit breaker is closed.
+	 *
+	 * @return true if the retry is allowed.
+	 */
+	public boolean tryAcquireRetry() {
+		if (breaker == null) {
+			return true;
+		}
+		if (breaker.isBroken) {
+			if (units.get() != 0) {
+				units.set(0);
+			}
+			return false;
+		}
+		long current;
+		do {
+			current = units.get();
+			if (current < UNITS_PER_TOKEN) {
+				return false;
+			}
+		} while (!units.compareAndSet(current, current - UNITS_PER_TOKEN));
+		return true;
+	}
+
+	/**
+	 * The amount of retries currently available.
+	 */
+	public double availableTokens() {
+		return (double) units.get() / UNITS_PER_TOKEN;
+	}
+}
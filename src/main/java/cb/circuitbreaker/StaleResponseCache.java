@@ -0,0 +1,223 @@
+package cb.circuitbreaker;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size and age bounded concurrent cache of the last successful response of each key. Intended to be consulted when a circuit breaker rejects a
+ * call, so that the caller receives a slightly stale response instead of nothing.
+ *
+ * The eviction is cheap and lock free: the keys are queued in the order they were first stored, and when the number of entries exceeds the maximum
+ * the key at the head of the queue is removed, unless its response was refreshed since it was queued, in which case it is queued again (a second
+ * chance). Entries older than their staleness limit are never served and are removed when found.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the cached responses.
+ */
+public class StaleResponseCache<K, V> {
+
+	/**
+	 * How many refreshed keys are given a second chance, at most, before evicting the key at the head of the queue regardless of its age. Bounds
+	 * the work of an eviction when all the keys are refreshed frequently.
+	 */
+	private static final int MAX_SECOND_CHANCES = 8;
+
+	/**
+	 * The maximum number of entries. It may be exceeded momentarily when many threads store entries concurrently.
+	 */
+	private final int maxEntries;
+	/**
+	 * The staleness limit applied to the entries stored without specifying one.
+	 */
+	private final long defaultMaxStaleNanos;
+	/**
+	 * The chronometer used to measure the age of the entries.
+	 */
+	private final CircuitBreaker.Chrono chrono;
+
+	private final ConcurrentHashMap<K, Entry<K, V>> entries;
+	/**
+	 * The keys in the order they were first stored or given a second chance. May contain tokens of keys that were already removed, which are
+	 * skipped by the eviction and purged when they are too many.
+	 */
+	private final ConcurrentLinkedQueue<Token<K>> insertionOrder = new ConcurrentLinkedQueue<>();
+	/**
+	 * Approximately how many tokens of the {@link #insertionOrder} belong to keys that were removed when they expired.
+	 */
+	private final AtomicInteger deadTokens = new AtomicInteger();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Construct an instance specifying all the parameters.
+	 *
+	 * @param maxEntries            the maximum number of entries.
+	 * @param defaultMaxStaleMillis the maximum age of the entries stored without specifying a staleness limit.
+	 * @param chrono                the chronometer used to measure the age of the entries.
+	 */
+	public StaleResponseCache(
+			final int maxEntries,
+			final int defaultMaxStaleMillis,
+			final CircuitBreaker.Chrono chrono
+	) {
+		this.maxEntries = maxEntries;
+		this.defaultMaxStaleNanos = defaultMaxStaleMillis * CircuitBreaker.NANOS_PER_MILLI;
+		this.chrono = chrono;
+		this.entries = new ConcurrentHashMap<>(maxEntries + maxEntries / 4);
+	}
+
+	/**
+	 * Stores the specified response, replacing the previous one associated to the same key, with the default staleness limit.
+	 */
+	public void remember(final K key, final V response) {
+		remember(key, response, defaultMaxStaleNanos);
+	}
+
+	/**
+	 * Stores the specified response, replacing the previous one associated to the same key, with the specified staleness limit.
+	 */
+	public void remember(final K key, final V response, final int maxStaleMillis) {
+		remember(key, response, maxStaleMillis * CircuitBreaker.NANOS_PER_MILLI);
+	}
+
+	private void remember(final K key, final V response, final long maxStaleNanos) {
+		final var now = chrono.nanoTime();
+		final var created = new Token<>(key, now);
+		final var stored = entries.compute(key, (k, old) -> new Entry<>(response, now, now + maxStaleNanos, old == null ? created : old.token));
+		if (stored.token == created) {
+			insertionOrder.add(created);
+			if (entries.size() > maxEntries) {
+				evictOne();
+			}
+		}
+	}
+
+	/**
+	 * Gives the response associated to the specified key, provided it is not older than its staleness limit.
+	 */
+	public Optional<V> recall(final K key) {
+		final var entry = entries.get(key);
+		if (entry != null) {
+			if (chrono.nanoTime() < entry.expirationNano) {
+				hits.increment();
+				return Optional.of(entry.response);
+			}
+			if (entries.remove(key, entry) && deadTokens.incrementAndGet() > maxEntries) {
+				deadTokens.set(0);
+				insertionOrder.removeIf(token -> !isAlive(token));
+			}
+		}
+		misses.increment();
+		return Optional.empty();
+	}
+
+	/**
+	 * Removes the key that was stored first, giving a second chance to the keys whose response was refreshed since they were queued.
+	 */
+	private void evictOne() {
+		var secondChances = 0;
+		for (Token<K> token; (token = insertionOrder.poll()) != null; ) {
+			final var entry = entries.get(token.key);
+			if (entry == null || entry.token != token) {
+				// the key was removed when it expired.
+				continue;
+			}
+			if (entry.storedNano > token.queuedNano && secondChances < MAX_SECOND_CHANCES) {
+				secondChances += 1;
+				token.queuedNano = entry.storedNano;
+				insertionOrder.add(token);
+				continue;
+			}
+			if (entries.remove(token.key, entry)) {
+				evictions.increment();
+				return;
+			}
+			// the response was refreshed concurrently: keep the key queued.
+			insertionOrder.add(token);
+		}
+	}
+
+	private boolean isAlive(final Token<K> token) {
+		final var entry = entries.get(token.key);
+		return entry != null && entry.token == token;
+	}
+
+	/**
+	 * The number of {@link #recall} invocations that found a response.
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * The number of {@link #recall} invocations that found no response, or found one older than its staleness limit.
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * The number of entries removed to keep the size bounded.
+	 */
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private static final class Entry<K, V> {
+		final V response;
+		final long storedNano;
+		final long expirationNano;
+		/**
+		 * The token that represents the key in the {@link #insertionOrder}. Kept when the response is refreshed.
+		 */
+		final Token<K> token;
+
+		Entry(final V response, final long storedNano, final long expirationNano, final Token<K> token) {
+			this.response = response;
+			this.storedNano = storedNano;
+			this.expirationNano = expirationNano;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * The position of a key in the {@link #insertionOrder}.
+	 */
+	private static final class Token<K> {
+		final K key;
+		/**
+		 * The instant of the response stored when this token was queued. Only changed by the thread that polled this token.
+		 */
+		volatile long queuedNano;
+
+		Token(final K key, final long queuedNano) {
+			this.key = key;
+			this.queuedNano = queuedNano;
+		}
+	}
+
+	/**
+	 * A response given by {@link CircuitBreakerSync#executeWithFallback}, which tells if it comes from the service or from the cache.
+	 */
+	public static final class Served<V> {
+		public final V response;
+		/**
+		 * True when the circuit was open and the response was taken from the cache.
+		 */
+		public final boolean isStale;
+
+		Served(final V response, final boolean isStale) {
+			this.response = response;
+			this.isStale = isStale;
+		}
+	}
+}
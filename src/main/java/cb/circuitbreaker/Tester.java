@@ -1,15 +1,20 @@
 package cb.circuitbreaker;
 
+import lombok.AllArgsConstructor;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
+import reactor.core.publisher.BufferOverflowStrategy;
 import reactor.core.publisher.Flux;
 import reactor.core.scheduler.Schedulers;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import static cb.circuitbreaker.Printer.debug;
@@ -18,18 +23,80 @@ import static cb.circuitbreaker.Printer.print;
 public class Tester {
 
 	public static final String FAILURE = "fail";
-	private static final int NUMBER_OF_TICKS = 80000;
+	static final int NUMBER_OF_TICKS = 80000;
 	private static final int TICK_PERIOD = 1;
-	private static final Random RANDOM = new Random();
+	/**
+	 * The default rate at which requests are generated: one per tick.
+	 */
+	static final double DEFAULT_REQUESTS_PER_SECOND = 1000d / TICK_PERIOD;
+	/**
+	 * The maximum number of batches of requests waiting to be dispatched to the circuit breakers. When the circuit breakers fall behind, the oldest
+	 * batches are dropped to keep the memory bounded, and their requests are counted as failed in the results of every circuit breaker.
+	 */
+	private static final int MAX_PENDING_BATCHES = 1024;
 	private static final int PERIOD = 20000;
+	/**
+	 * The period of the outages of the {@link #RATE_STEPS} and {@link #HOST_OUTAGES} scenarios, and the duration of each outage.
+	 */
+	private static final int OUTAGE_PERIOD = 5000;
+	private static final int OUTAGE_DURATION = 1000;
+	/**
+	 * The factors by which the {@link #RATE_STEPS} scenario multiplies the configured rate. The test duration is divided in equal parts, one per
+	 * factor.
+	 */
+	private static final double[] RATE_STEP_FACTORS = {0.1, 0.5, 2, 10};
+	/**
+	 * The number of endpoints of the host simulated by the {@link #HOST_OUTAGES} scenario, and the offset in its period at which a single endpoint
+	 * suffers an outage.
+	 */
+	private static final int HOST_ENDPOINTS = 4;
+	private static final int ENDPOINT_OUTAGE_OFFSET = 1500;
+	/**
+	 * The percentage of the requests of each {@link Criticality}, indexed by ordinal.
+	 */
+	private static final int[] CRITICALITY_PERCENTAGES = {20, 50, 30};
+	/**
+	 * Odd constant used to derive an independent random stream for each retry from the seed of the run.
+	 */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
 
 	private final int parallelism;
+	/**
+	 * The rate at which the requests are generated.
+	 */
+	private final double requestsPerSecond;
+	/**
+	 * The number of requests that were generated but not dispatched because the circuit breakers fell behind, in total and of each
+	 * {@link Criticality} indexed by ordinal.
+	 */
+	private final LongAdder droppedRequests = new LongAdder();
+	private final AtomicLongArray droppedRequestsByCriticality = new AtomicLongArray(Criticality.values().length);
+	/**
+	 * The seed of this run. Circuit breakers that use randomness should derive their seeds from this one to make the run reproducible.
+	 */
+	final long seed;
+	/**
+	 * The random numbers generator used to decide the outcome of the requests. It is used only by the thread that generates the requests.
+	 */
+	private final SplittableRandom random;
+	/**
+	 * Determines the outcome of the requests and how the request rate varies along the test.
+	 */
+	private final Scenario scenario;
 
 	/**
-	 * @param parallelism specifies how many request are processed concurrently by each circuit breaker under test.
+	 * @param parallelism       specifies how many request are processed concurrently by each circuit breaker under test. Should be 1 for rates
+	 *                          much higher than the default, otherwise the simulated service sleeps more than the period between requests.
+	 * @param seed              the seed that determines the outcome of the requests in the scenarios that are random.
+	 * @param requestsPerSecond the base rate at which the requests are generated. The scenario may vary it along the test.
+	 * @param scenario          determines the outcome of the requests and how the request rate varies along the test.
 	 */
-	public Tester(int parallelism) {
+	public Tester(int parallelism, long seed, double requestsPerSecond, Scenario scenario) {
 		this.parallelism = parallelism;
+		this.requestsPerSecond = requestsPerSecond;
+		this.seed = seed;
+		this.random = new SplittableRandom(seed);
+		this.scenario = scenario;
 	}
 
 	/**
@@ -39,30 +106,133 @@ public class Tester {
 	 */
 	void run(final List<Facade> facades) {
 		print("Collecting statistics data. That takes %d seconds. Pleas wait.%nSome log lines may be displayed. You may ignore them.%n", NUMBER_OF_TICKS/1000);
+		var startNano = System.nanoTime();
+		var statsByName = collect(facades);
+		var testDuration = (System.nanoTime() - startNano) / 1_000_000;
+		var report = statsByName.entrySet().stream()
+				.map(e -> String.format("%20s: %s", e.getKey(), e.getValue()))
+				.collect(Collectors.joining("\n"));
+
+		var statsOfAlwaysClosed = statsByName.get("alwaysClosed");
+		var sampleSuccesses = (statsOfAlwaysClosed.tryHits + statsOfAlwaysClosed.dropFails) * 100.0 / statsOfAlwaysClosed.requests;
+		print("Report%nSeed:%d%nTest duration:%d%nRequests per second:%.0f%nDropped requests:%d%nSample successes: %5.2f%%%n",
+				seed, testDuration, requestsPerSecond, droppedRequests.sum(), sampleSuccesses);
+		print("%20s%17s%17s%17s%17s%17s%17s%12s%17s%8s%10s%10s%17s%n", "name", "hits", "fails", "tryHits", "tryFails", "dropHits", "dropFails",
+				"closedTime", "servedStale", "load", "latency", "maxLatency", "dropped");
+		print("%s%n", report);
+		printDetectionLatencies(statsByName);
+		printGoodputByCriticality(statsByName);
+	}
+
+	/**
+	 * Shows, for each circuit breaker instance, the percentage of the requests of each {@link Criticality} that were responded successfully.
+	 */
+	private void printGoodputByCriticality(final TreeMap<String, Accum> statsByName) {
+		var header = new StringBuilder(String.format("%20s", "name"));
+		for (var criticality : Criticality.values()) {
+			header.append(String.format("%12s", criticality.name().toLowerCase()));
+		}
+		var lines = statsByName.entrySet().stream()
+				.map(e -> {
+					var line = new StringBuilder(String.format("%20s:", e.getKey()));
+					for (var criticality : Criticality.values()) {
+						var c = criticality.ordinal();
+						var requests = e.getValue().requestsByCriticality[c] + e.getValue().droppedByCriticality[c];
+						line.append(String.format(" %9.2f%%,", e.getValue().tryHitsByCriticality[c] * 100.0 / requests));
+					}
+					return line.toString();
+				})
+				.collect(Collectors.joining("\n"));
+		print("Goodput by criticality: responded successfully / requests of the class%n%s%n%s%n", header, lines);
+	}
+
+	/**
+	 * Shows, for each circuit breaker instance, how long it took to start rejecting requests since the start of each outage of the scenario, grouped
+	 * by the request rate at which the outage started. Does nothing if the scenario has no outages.
+	 */
+	private void printDetectionLatencies(final TreeMap<String, Accum> statsByName) {
+		// the start of every outage, grouped by the request rate at the start.
+		var outagesByRate = new TreeMap<Double, List<Long>>();
+		for (var milli = 0L; milli < NUMBER_OF_TICKS; ++milli) {
+			if (scenario.outageStart(milli) == milli) {
+				outagesByRate.computeIfAbsent(requestsPerSecond * scenario.rateFactor(milli), k -> new ArrayList<>()).add(milli);
+			}
+		}
+		if (outagesByRate.isEmpty()) {
+			return;
+		}
+		var header = new StringBuilder(String.format("%20s", "name"));
+		for (var rate : outagesByRate.keySet()) {
+			header.append(String.format("%17s", String.format("%.0f rps", rate)));
+		}
+		var lines = statsByName.entrySet().stream()
+				.map(e -> {
+					var line = new StringBuilder(String.format("%20s:", e.getKey()));
+					for (var outages : outagesByRate.values()) {
+						var detected = 0;
+						var latencySum = 0L;
+						for (var outageStart : outages) {
+							var firstRejection = e.getValue().firstRejectionByOutage.get(outageStart);
+							if (firstRejection != null) {
+								detected += 1;
+								latencySum += firstRejection - outageStart;
+							}
+						}
+						line.append(String.format(" %7.1fms (%d/%d)", latencySum * 1.0 / detected, detected, outages.size()));
+					}
+					return line.toString();
+				})
+				.collect(Collectors.joining("\n"));
+		print("Detection latency: mean time from the start of an outage to the first rejected request (detected outages / outages)%n%s%n%s%n",
+				header, lines);
+	}
+
+	/**
+	 * Runs the test and gives the statistics of each circuit breaker instance, without showing them.
+	 *
+	 * @param facades a list of {@link Facade} instances.
+	 * @return the statistics of each circuit breaker instance by name.
+	 */
+	TreeMap<String, Accum> collect(final List<Facade> facades) {
 		final var threadsPoolSize = this.parallelism * facades.size();
-		// Build a graph that every millisecond generates a request, hits all the circuit breaker instances with said request, and accumulates all the responses for each circuit breaker instance.
-		var graph = Flux.interval(Duration.ofMillis(TICK_PERIOD))
-				.takeWhile(milli -> milli < NUMBER_OF_TICKS)
-				.onBackpressureBuffer()
-				.map(milli -> new Request(milli, isOk(milli)))
+		// the threads are released when the run ends, so that many runs in the same process don't accumulate them.
+		final var scheduler = Schedulers.newParallel("myScheduler", threadsPoolSize, true);
+		// Build a graph that every millisecond generates a batch of requests, hits all the circuit breaker instances with each request, and accumulates all the responses for each circuit breaker instance.
+		var graph = generateRequests()
 				.flatMap(request -> Flux.fromIterable(facades).map(facade -> new RequestAndFacade(request, facade)))
 				.parallel(threadsPoolSize)
 //				.runOn(Schedulers.newBoundedElastic(threadsPoolSize, 4, "myScheduler", 1, true))
-				.runOn(Schedulers.newParallel("myScheduler", threadsPoolSize, true))
-				.map(rah -> rah.facade.doSomething(rah.request))
+				.runOn(scheduler)
+				.map(rah -> new OutAndCompletion(rah.facade.doSomething(rah.request), System.nanoTime()))
 				.sequential()
-				.doOnNext(out -> debug("%d - %s - out=%s\n", out.request.milli, out.breakerName, out.response.toString()))
+				.doOnNext(oac -> debug("%d - %s - out=%s\n", oac.out.request.milli, oac.out.breakerName, oac.out.response.toString()))
 				.reduce(
 						new TreeMap<String, Accum>(),
-						(report, out) -> {
+						(report, oac) -> {
+							var out = oac.out;
 							var accum = report.get(out.breakerName);
 							if (accum == null) {
 								accum = new Accum();
 								report.put(out.breakerName, accum);
 							}
+							accum.requests += 1;
+							accum.requestsByCriticality[out.request.criticality.ordinal()] += 1;
+							var latency = oac.completionNano - out.request.intendedNano;
+							accum.latencyNanosSum += latency;
+							accum.maxLatencyNanos = Math.max(accum.maxLatencyNanos, latency);
+							accum.serviceCalls += out.serviceCalls;
+							var outageStart = scenario.outageStart(out.request.milli);
+							if (outageStart >= 0 && (out.response.isEmpty() || out.isStale)) {
+								accum.firstRejectionByOutage.merge(outageStart, out.request.milli, Math::min);
+							}
+							if (out.isStale) {
+								accum.staleServes += 1;
+								return report;
+							}
 							var respondedSuccessfully = out.response.isPresent() && !out.response.get().equals(FAILURE);
 							if (out.request.isOk && respondedSuccessfully) {
 								accum.tryHits += 1;
+								accum.tryHitsByCriticality[out.request.criticality.ordinal()] += 1;
 							}
 							if (out.request.isOk && !respondedSuccessfully) {
 								accum.dropFails += 1;
@@ -76,26 +246,95 @@ public class Tester {
 							return report;
 						}
 				);
+		final TreeMap<String, Accum> statsByName;
+		try {
+			statsByName = graph.toFuture().join();
+		} finally {
+			scheduler.dispose();
+		}
+		// the dropped requests never reached the circuit breakers, but their clients got no response; so they count as failed for all of them.
+		for (var accum : statsByName.values()) {
+			accum.dropped = droppedRequests.sum();
+			for (var c = 0; c < accum.droppedByCriticality.length; ++c) {
+				accum.droppedByCriticality[c] = droppedRequestsByCriticality.get(c);
+			}
+		}
+		return statsByName;
+	}
 
-		var startNano = System.nanoTime();
-		var statsByName = graph.toFuture().join();
-		var testDuration = (System.nanoTime() - startNano) / 1_000_000;
-		var report = statsByName.entrySet().stream()
-				.map(e -> String.format("%20s: %s", e.getKey(), e.getValue()))
-				.collect(Collectors.joining("\n"));
+	/**
+	 * Builds an open loop generator of requests: the requests are generated at the rate given by the configured rate and the scenario, regardless of
+	 * how fast the circuit breakers respond them.
+	 *
+	 * Every tick, all the requests whose intended start time has already arrived are emitted. The intended start times are spaced according to the
+	 * rate at the previous request, and are measured from the start of the generation, not from the tick; so a late tick emits a bigger batch
+	 * instead of shifting the schedule, and the latency measured since the intended start time includes the time the request waited to be sent.
+	 * That avoids the coordinated omission.
+	 *
+	 * The batches wait in a bounded buffer to be dispatched. When the buffer is full, the oldest batch is dropped and counted in
+	 * {@link #droppedRequests}; so that the requests that waited the longest are not silently excluded from the results, which would reintroduce the
+	 * coordinated omission.
+	 */
+	private Flux<Request> generateRequests() {
+		final var durationNanos = NUMBER_OF_TICKS * CircuitBreaker.NANOS_PER_MILLI;
+		return Flux.defer(() -> {
+			final var startNano = System.nanoTime();
+			// the number of requests generated so far, and the intended start time of the next one measured from the start. Only accessed by the
+			// thread of the interval.
+			final var generated = new long[1];
+			final var nextIntendedOffsetNanos = new double[1];
+			return Flux.interval(Duration.ZERO, Duration.ofMillis(TICK_PERIOD))
+					.<List<Request>>handle((tick, sink) -> {
+						var elapsedNanos = System.nanoTime() - startNano;
+						var batch = new ArrayList<Request>();
+						while (nextIntendedOffsetNanos[0] <= elapsedNanos && nextIntendedOffsetNanos[0] < durationNanos) {
+							var intendedOffsetNanos = (long) nextIntendedOffsetNanos[0];
+							var milli = intendedOffsetNanos / CircuitBreaker.NANOS_PER_MILLI;
+							var endpoint = (int) (generated[0] % scenario.endpoints());
+							batch.add(new Request(milli, isOk(milli, endpoint, random), generated[0], startNano + intendedOffsetNanos, endpoint,
+									criticalityOf(generated[0])));
+							generated[0] += 1;
+							nextIntendedOffsetNanos[0] += 1e9 / (requestsPerSecond * scenario.rateFactor(milli));
+						}
+						if (!batch.isEmpty()) {
+							sink.next(batch);
+						}
+						if (nextIntendedOffsetNanos[0] >= durationNanos) {
+							sink.complete();
+						}
+					})
+					.onBackpressureBuffer(MAX_PENDING_BATCHES, this::countDropped, BufferOverflowStrategy.DROP_OLDEST)
+					.flatMapIterable(batch -> batch);
+		});
+	}
 
-		var statsOfAlwaysClosed = statsByName.get("alwaysClosed");
-		var sampleSuccesses = (statsOfAlwaysClosed.tryHits + statsOfAlwaysClosed.dropFails) * 100.0 / NUMBER_OF_TICKS;
-		print("Report%nTest duration:%d%nSample successes: %5.2f%%%n", testDuration, sampleSuccesses);
-		print("%20s%17s%17s%17s%17s%17s%17s%12s%n", "name", "hits", "fails", "tryHits", "tryFails", "dropHits", "dropFails", "closedTime");
-		print("%s%n", report);
+	private void countDropped(final List<Request> batch) {
+		droppedRequests.add(batch.size());
+		for (var request : batch) {
+			droppedRequestsByCriticality.incrementAndGet(request.criticality.ordinal());
+		}
 	}
 
 	/**
 	 * Accumulator of the statistics of a circuit breaker instance. One instance of this class is created for each circuit breaker instance under
 	 * test.
 	 */
-	private static class Accum {
+	static class Accum {
+		/**
+		 * The names of the values given by {@link #columns()}.
+		 */
+		static final String[] COLUMN_NAMES = {"hits", "fails", "tryHits", "tryFails", "dropHits", "dropFails", "closedTime", "servedStale", "load",
+				"latency", "maxLatency", "dropped"};
+
+		/**
+		 * number of requests responded.
+		 */
+		long requests;
+		/**
+		 * number of requests dropped by the generator before reaching the CB, because the CBs fell behind. They are counted as failed, like timed
+		 * out requests, because their clients got no response; but they are not included in the latencies, which are unknown.
+		 */
+		long dropped;
 		/**
 		 * number of service calls that were responded successfully. In other words, the CB made the right decision letting the call to continue.
 		 */
@@ -112,17 +351,72 @@ public class Tester {
 		 * number of request that were dropped (or the CB failed) when the service was available. In other words, the CB made the wrong decision avoiding the call.
 		 */
 		int dropFails;
+		/**
+		 * number of request that were responded with a stale response taken from a fallback cache because the CB was open. These are not included in
+		 * any of the other counters.
+		 */
+		int staleServes;
+		/**
+		 * number of calls that reached the simulated service, including retries.
+		 */
+		long serviceCalls;
+		/**
+		 * sum of the latencies of all the requests, each measured from its intended start time.
+		 */
+		long latencyNanosSum;
+		/**
+		 * maximum latency of the requests, measured from their intended start time.
+		 */
+		long maxLatencyNanos;
+		/**
+		 * the millisecond of the first request rejected during each outage of the scenario, by the millisecond at which the outage started.
+		 */
+		final TreeMap<Long, Long> firstRejectionByOutage = new TreeMap<>();
+		/**
+		 * number of requests responded, and of service calls that were responded successfully, of each {@link Criticality}, indexed by ordinal.
+		 */
+		final long[] requestsByCriticality = new long[Criticality.values().length];
+		final long[] tryHitsByCriticality = new long[Criticality.values().length];
+		final long[] droppedByCriticality = new long[Criticality.values().length];
+
+		/**
+		 * The proportions shown by {@link #toString()}, in the order given by {@link #COLUMN_NAMES}. All of them are percentages except the load and
+		 * the latencies, which are in milliseconds. The hits, fails and dropped are relative to all the generated requests, including the dropped ones.
+		 */
+		double[] columns() {
+			final var generated = requests + dropped;
+			return new double[]{
+					(tryHits + dropHits) * 100.0 / generated,
+					(tryFails + dropFails + dropped) * 100.0 / generated,
+					tryHits * 100.0 / (tryHits + tryFails),
+					tryFails * 100.0 / (tryHits + tryFails),
+					dropHits * 100.0 / (dropHits + dropFails),
+					dropFails * 100.0 / (dropHits + dropFails),
+					(tryHits + tryFails) * 100.0 / requests,
+					staleServes * 100.0 / requests,
+					serviceCalls * 1.0 / requests,
+					latencyNanosSum * 1e-6 / requests,
+					maxLatencyNanos * 1e-6,
+					dropped * 100.0 / generated
+			};
+		}
 
 		public String toString() {
+			final var generated = requests + dropped;
 			return String
-					.format("%6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %9.2f%%",
-							tryHits + dropHits, (tryHits + dropHits) * 100.0 / NUMBER_OF_TICKS,
-							tryFails + dropFails, (tryFails + dropFails) * 100.0 / NUMBER_OF_TICKS,
+					.format("%6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %6d (%5.2f%%), %9.2f%%, %6d (%5.2f%%), %6.2fx, %7.2fms, %7.1fms, %6d (%5.2f%%)",
+							tryHits + dropHits, (tryHits + dropHits) * 100.0 / generated,
+							tryFails + dropFails + dropped, (tryFails + dropFails + dropped) * 100.0 / generated,
 							tryHits, tryHits * 100.0 / (tryHits + tryFails),
 							tryFails, tryFails * 100.0 / (tryHits + tryFails),
 							dropHits, dropHits * 100.0 / (dropHits + dropFails),
 							dropFails, dropFails * 100.0 / (dropHits + dropFails),
-							(tryHits + tryFails) * 100.0 / NUMBER_OF_TICKS
+							(tryHits + tryFails) * 100.0 / requests,
+							staleServes, staleServes * 100.0 / requests,
+							serviceCalls * 1.0 / requests,
+							latencyNanosSum * 1e-6 / requests,
+							maxLatencyNanos * 1e-6,
+							dropped, dropped * 100.0 / generated
 					);
 		}
 	}
@@ -142,6 +436,12 @@ public class Tester {
 		final Facade facade;
 	}
 
+	@RequiredArgsConstructor
+	private static class OutAndCompletion {
+		final Out out;
+		final long completionNano;
+	}
+
 	/**
 	 * The request that is sent to the service. Note that the request already knows if the service will be able to respond it.
 	 */
@@ -149,13 +449,31 @@ public class Tester {
 	@RequiredArgsConstructor
 	static class Request {
 		/**
-		 * A request is generated every millisecond. This is the number of the millisecond since the test start.
+		 * The number of the millisecond since the test start in which this request was intended to be sent. Many requests share the same millisecond
+		 * when the rate is above one request per millisecond.
 		 */
 		final long milli;
 		/**
 		 * Tells the service simulator if the call should succeed of fail.
 		 */
 		final boolean isOk;
+		/**
+		 * The sequence number of this request.
+		 */
+		final long index;
+		/**
+		 * The instant, according to {@link System#nanoTime()}, at which this request was intended to be sent. The latency is measured from it.
+		 */
+		final long intendedNano;
+		/**
+		 * The endpoint of the simulated host this request is sent to, between zero and {@link Scenario#endpoints()}. The requests are spread evenly
+		 * over the endpoints.
+		 */
+		final int endpoint;
+		/**
+		 * How important this request is for the client. Only the circuit breakers that support criticality consider it.
+		 */
+		final Criticality criticality;
 	}
 
 	/**
@@ -164,29 +482,173 @@ public class Tester {
 	 *
 	 * The response {@link Optional} is empty when the service call is executed while the circuit breaker is in open state. Abrupt terminations of the
 	 * service call should be handled and represented with a non-empty {@link Optional}.
+	 *
+	 * When the circuit breaker is open but a fallback supplies a stale response, the response {@link Optional} contains it and {@code isStale} is true.
+	 *
+	 * The {@code serviceCalls} tells how many times the simulated service was called to respond the request, retries included. It is used to measure
+	 * the load amplification caused by retrying clients.
 	 */
 	@ToString
-	@RequiredArgsConstructor
+	@AllArgsConstructor
 	static class Out {
 		final String breakerName;
 		final Request request;
 		final Optional<String> response;
+		final boolean isStale;
+		final int serviceCalls;
+
+		Out(String breakerName, Request request, Optional<String> response) {
+			this(breakerName, request, response, false, response.isPresent() ? 1 : 0);
+		}
 	}
 
 	/**
-	 * Called during the {@link Request} generation to determines what the simulated service should respond: a successful or unsuccessful response.
-	 * The probability of success depends on the received millisecond.
+	 * Determines what the simulated service should respond and how the request rate varies along the test.
 	 */
-	private static boolean isOk(long milli) {
-//		var ok = valleyPlateau(milli);
-//		var ok = valleyClimb(milli);
-//		var ok = climbPlateau(milli);
-		var ok = milli < NUMBER_OF_TICKS / 2 ? valleyPlateau(milli) : climbPlateau(milli);
+	@FunctionalInterface
+	interface Scenario {
+		/**
+		 * Called during the {@link Request} generation to determines what the simulated service should respond: a successful or unsuccessful
+		 * response. The probability of success depends on the received millisecond.
+		 */
+		boolean isOk(long milli, SplittableRandom random);
+
+		/**
+		 * Like {@link #isOk(long, SplittableRandom)} but for the specified endpoint. Scenarios with more than one endpoint override it; the default
+		 * implementation ignores the endpoint.
+		 */
+		default boolean isOk(long milli, int endpoint, SplittableRandom random) {
+			return isOk(milli, random);
+		}
+
+		/**
+		 * The number of endpoints of the simulated host.
+		 */
+		default int endpoints() {
+			return 1;
+		}
+
+		/**
+		 * The factor by which the configured request rate is multiplied at the specified millisecond.
+		 */
+		default double rateFactor(long milli) {
+			return 1d;
+		}
+
+		/**
+		 * The millisecond at which started the outage that includes the specified millisecond, or -1 if the service is not in an outage. Used to measure
+		 * how long the circuit breakers take to detect each outage. Scenarios whose failures are gradual or random have no outages.
+		 */
+		default long outageStart(long milli) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The default scenario: the first half is a square wave (⎵⎴⎵⎴) and the second half alternates between a linear climb and a plateau (╱⎴╱⎴).
+	 */
+	static final Scenario MIXED = (milli, random) -> {
+//		return valleyPlateau(milli);
+//		return climbValley(milli, random);
+//		return climbPlateau(milli, random);
+		return milli < NUMBER_OF_TICKS / 2 ? valleyPlateau(milli) : climbPlateau(milli, random);
+	};
+
+	/**
+	 * A scenario where the request rate steps up along the test, multiplying the configured rate by each of the {@link #RATE_STEP_FACTORS}, while the
+	 * service suffers short periodic outages. Shows if the circuit breakers detect the outages equally fast at every rate.
+	 */
+	static final Scenario RATE_STEPS = new Scenario() {
+		@Override
+		public boolean isOk(long milli, SplittableRandom random) {
+			return outageStart(milli) < 0;
+		}
+
+		@Override
+		public double rateFactor(long milli) {
+			return RATE_STEP_FACTORS[(int) (milli * RATE_STEP_FACTORS.length / NUMBER_OF_TICKS)];
+		}
+
+		@Override
+		public long outageStart(long milli) {
+			return periodicOutageStart(milli);
+		}
+	};
+
+	/**
+	 * A scenario where the simulated host has {@link #HOST_ENDPOINTS} endpoints. Every period the whole host suffers an outage, during which all the
+	 * endpoints fail at once, and one of the endpoints, a different one each period, suffers an outage of its own. Shows how many doomed calls are
+	 * saved by breakers that learn from the outcomes of all the endpoints of the host (see {@link CircuitBreakerSync#withParent}), compared with
+	 * independent breakers per endpoint, without shedding the healthy endpoints when only one fails.
+	 */
+	static final Scenario HOST_OUTAGES = new Scenario() {
+		@Override
+		public boolean isOk(long milli, SplittableRandom random) {
+			return outageStart(milli) < 0;
+		}
+
+		@Override
+		public boolean isOk(long milli, int endpoint, SplittableRandom random) {
+			var millisSincePeriodStart = milli % OUTAGE_PERIOD;
+			var isEndpointDown = endpoint == (milli / OUTAGE_PERIOD) % HOST_ENDPOINTS
+					&& millisSincePeriodStart >= ENDPOINT_OUTAGE_OFFSET && millisSincePeriodStart < ENDPOINT_OUTAGE_OFFSET + OUTAGE_DURATION;
+			return isOk(milli, random) && !isEndpointDown;
+		}
+
+		@Override
+		public int endpoints() {
+			return HOST_ENDPOINTS;
+		}
+
+		@Override
+		public long outageStart(long milli) {
+			return periodicOutageStart(milli);
+		}
+	};
+
+	/**
+	 * The millisecond at which started the periodic outage that includes the specified millisecond, or -1 if it is outside the outages. The outages
+	 * last {@link #OUTAGE_DURATION} at the end of each {@link #OUTAGE_PERIOD}.
+	 */
+	private static long periodicOutageStart(long milli) {
+		var millisSincePeriodStart = milli % OUTAGE_PERIOD;
+		return millisSincePeriodStart >= OUTAGE_PERIOD - OUTAGE_DURATION ? milli - millisSincePeriodStart + OUTAGE_PERIOD - OUTAGE_DURATION : -1;
+	}
+
+	/**
+	 * Called during the {@link Request} generation to determines what the simulated service should respond, according to the scenario.
+	 */
+	private boolean isOk(long milli, int endpoint, SplittableRandom random) {
+		var ok = scenario.isOk(milli, endpoint, random);
 		debug("%d - isOk=%b\n", milli, ok);
 		return ok;
 	}
 
 
+	/**
+	 * Gives the criticality of the request with the specified sequence number, according to {@link #CRITICALITY_PERCENTAGES}. The classes are
+	 * mixed by hashing the sequence number, so they don't correlate with the endpoints.
+	 */
+	private static Criticality criticalityOf(long index) {
+		var percentile = (int) ((index * GOLDEN_GAMMA >>> 33) % 100);
+		for (var criticality : Criticality.values()) {
+			percentile -= CRITICALITY_PERCENTAGES[criticality.ordinal()];
+			if (percentile < 0) {
+				return criticality;
+			}
+		}
+		return Criticality.DEFAULT;
+	}
+
+	/**
+	 * Determines what the simulated service should respond to a retry of the specified {@link Request}. The retry is sent immediately, so the
+	 * probability of success is the same as the original request's, but the outcome is decided again. The decision depends only on the seed of the
+	 * run, the request, and the attempt number; so it is reproducible regardless of the thread that calls this method.
+	 */
+	boolean isOkOnRetry(Request request, int attempt) {
+		return isOk(request.milli, request.endpoint, new SplittableRandom(seed + (request.index << 8 | attempt) * GOLDEN_GAMMA));
+	}
+
 	/**
 	 * ⎵⎴⎵⎴
 	 */
@@ -197,11 +659,11 @@ public class Tester {
 	/**
 	 * /⎵/⎵
 	 */
-	private static boolean climbValley(long milli) {
+	private static boolean climbValley(long milli, SplittableRandom random) {
 		var millisSincePeriodStart = milli % PERIOD;
 		final boolean ok;
 		if ((milli / PERIOD) % 2 == 0) {
-			ok = RANDOM.nextInt(PERIOD) < millisSincePeriodStart;
+			ok = random.nextInt(PERIOD) < millisSincePeriodStart;
 		} else {
 			ok = false;
 		}
@@ -211,11 +673,11 @@ public class Tester {
 	/**
 	 * ╱⎴╱⎴
 	 */
-	private static boolean climbPlateau(long milli) {
+	private static boolean climbPlateau(long milli, SplittableRandom random) {
 		var millisSincePeriodStart = milli % PERIOD;
 		final boolean ok;
 		if ((milli / PERIOD) % 2 == 0) {
-			ok = RANDOM.nextInt(PERIOD) < millisSincePeriodStart;
+			ok = random.nextInt(PERIOD) < millisSincePeriodStart;
 		} else {
 			ok = true;
 		}